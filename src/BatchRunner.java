@@ -0,0 +1,408 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs queries from a file or from standard input against a dataset without a display, for scripts such as nightly
+ * reports. Each line of input is one query: the name of its Data method or QueryType, then its arguments as in the
+ * method (categories from 0), then optionally @segment to limit it to a segment made with --segment. Blank lines and
+ * lines starting with # are ignored.
+ *
+ *     countThresholdQuery 5 3
+ *     PERCENTAGE 12
+ *     comparisonQuery 0 1 @heavy-sports
+ *
+ * Queries are read while earlier ones run, and at most --threads of them run at once. The reader waits for a free
+ * slot before taking the next line, so a long stream never piles up in memory. Each result is written as soon as its
+ * query finishes, so rows come out in completion order and carry the line number of their query. A writer thread
+ * flushes whenever it has written every finished row, so a script reading the output sees each row right away without
+ * a flush per row when results arrive quickly.
+ *
+ * Every row has the query, its result, the path the planner chose, when it started (ms from the start of the batch)
+ * and how long it ran (us). A line that can't be parsed or a query that fails gets a row with an error instead, and
+ * makes the exit code 1.
+ *
+ * The dataset is a data file, plain or gzip compressed, or a directory written by Data.saveColumns. A directory is
+ * opened without reading its columns, so the first results come out at once.
+ *
+ * Usage: java BatchRunner [--format csv|json] [--threads n] [--errors n] [--cache mb] [--segment name:category:views]
+ *        dataset [queryFile]
+ * Reads the queries from standard input when queryFile is missing or -. Logging goes to standard error.
+ *
+ * @author Robert Bofinger, Preston Mackert
+ *
+ */
+
+public class BatchRunner {
+
+    public enum Format { CSV, JSON }
+
+    private static final int CATEGORIES = 17; // of a session file, a column dataset says how many it has
+    private static final String CSV_HEADER = "line,query,arg1,arg2,segment,result,path,start_ms,time_us,error";
+
+    /**
+     * A parsed line of input
+     */
+    static class Query {
+        final int line;
+        final QueryType type;
+        final int arg1;
+        final int arg2;
+        final String segment; // null for every user
+
+        Query(int line, QueryType type, int arg1, int arg2, String segment) {
+            this.line = line;
+            this.type = type;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.segment = segment;
+        }
+    }
+
+    private final Data data;
+    private final Format format;
+    private final int threads;
+
+    /**
+     * @param data the dataset to query
+     * @param format how to write the results
+     * @param threads how many queries may run at once
+     */
+    public BatchRunner(Data data, Format format, int threads) {
+        this.data = data;
+        this.format = format;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Parses a line of input
+     * @param line the line number, from 1
+     * @param text the line
+     * @param categories how many categories the dataset has
+     * @return the query, null for a blank line or a comment
+     * @throws IllegalArgumentException if the line isn't a valid query
+     */
+    static Query parse(int line, String text, int categories) {
+        String[] words = text.trim().split("\\s+");
+        if (words[0].isEmpty() || words[0].startsWith("#")) {
+            return null;
+        }
+        String segment = null;
+        int count = words.length;
+        if (words[count - 1].startsWith("@")) {
+            segment = words[--count].substring(1);
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException("missing segment name after @");
+            }
+        }
+        QueryType type = null;
+        for (QueryType candidate : QueryType.values()) {
+            if (candidate.name().equalsIgnoreCase(words[0]) || candidate.getMethod().equalsIgnoreCase(words[0])) {
+                type = candidate;
+            }
+        }
+        if (type == null) {
+            throw new IllegalArgumentException("unknown query " + words[0]);
+        }
+        int arguments = type == QueryType.PERCENTAGE ? 1 : 2;
+        if (count - 1 != arguments) {
+            throw new IllegalArgumentException(type.getMethod() + " takes " + arguments + " arguments, not "
+                    + (count - 1));
+        }
+        int arg1 = number(words[1]);
+        int arg2 = arguments > 1 ? number(words[2]) : 0;
+        type.checkCategories(arg1, arg2, categories);
+        return new Query(line, type, arg1, arg2, segment);
+    }
+
+    private static int number(String word) {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + word);
+        }
+    }
+
+    private static void category(int category, int categories) {
+        if (category < 0 || category >= categories) {
+            throw new IllegalArgumentException("category " + category + " is out of range 0-" + (categories - 1));
+        }
+    }
+
+    /**
+     * Defines the segment of a --segment option
+     * @param data the dataset to define it in
+     * @param option the option's value, name:category:views
+     * @throws IllegalArgumentException if the value isn't a valid segment of data
+     */
+    static void defineSegment(Data data, String option) {
+        String[] parts = option.split(":");
+        if (parts.length != 3 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("segment " + option + " isn't name:category:views");
+        }
+        int category = number(parts[1]);
+        category(category, data.getCategories());
+        int views = number(parts[2]);
+        if (views < 0) {
+            throw new IllegalArgumentException("segment " + parts[0] + " needs a view count of 0 or more, not "
+                    + views);
+        }
+        data.defineSegment(parts[0], category, views);
+    }
+
+    /**
+     * Runs every query of the input and writes a row per query, plus a header for CSV
+     * @param input the queries, one per line
+     * @param out where to write the rows, flushed but not closed
+     * @return how many lines could not be parsed or failed to run
+     * @throws IOException if the input can't be read or the output can't be written
+     * @throws InterruptedException
+     */
+    public int run(BufferedReader input, Writer out) throws IOException, InterruptedException {
+        BlockingQueue<String> rows = new ArrayBlockingQueue<String>(4 * threads);
+        String end = new String("end"); // compared by identity, marks the last row
+        IOException[] writeError = new IOException[1];
+        Thread writer = new Thread(() -> {
+            try {
+                if (format == Format.CSV) {
+                    out.write(CSV_HEADER);
+                    out.write('\n');
+                }
+                String row;
+                while ((row = rows.take()) != end) {
+                    out.write(row);
+                    out.write('\n');
+                    if (rows.isEmpty()) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                writeError[0] = e;
+                rows.clear();
+                while (true) { // keep taking rows so the queries don't wait forever, the batch fails at the end
+                    try {
+                        if (rows.take() == end) {
+                            break;
+                        }
+                    } catch (InterruptedException stop) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the batch was abandoned
+            }
+        }, "batch writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch query");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore slots = new Semaphore(threads);
+        AtomicInteger failures = new AtomicInteger();
+        long origin = System.nanoTime();
+        try {
+            String text;
+            int line = 0;
+            while ((text = input.readLine()) != null) {
+                line++;
+                Query query;
+                try {
+                    query = parse(line, text, data.getCategories());
+                } catch (IllegalArgumentException e) {
+                    failures.incrementAndGet();
+                    rows.put(error(line, e.getMessage()));
+                    continue;
+                }
+                if (query == null) {
+                    continue;
+                }
+                slots.acquire();
+                pool.execute(() -> {
+                    try {
+                        rows.put(execute(query, origin, failures));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            rows.put(end);
+            writer.join();
+        } finally {
+            pool.shutdownNow();
+            writer.interrupt();
+        }
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+        return failures.get();
+    }
+
+    /**
+     * Runs a query and formats its row
+     */
+    private String execute(Query query, long origin, AtomicInteger failures) {
+        long start = System.nanoTime();
+        QueryPlanner.Plan plan;
+        try {
+            plan = query.segment == null ? data.explain(query.type, query.arg1, query.arg2)
+                    : data.explain(query.segment, query.type, query.arg1, query.arg2);
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            return error(query.line, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        long nanos = System.nanoTime() - start;
+        double startMillis = (start - origin) / 1e6;
+        String segment = query.segment;
+        if (format == Format.JSON) {
+            return String.format(Locale.ROOT, "{\"line\":%d,\"query\":\"%s\",\"arg1\":%d,\"arg2\":%d,\"segment\":%s,"
+                    + "\"result\":%s,\"path\":\"%s\",\"start_ms\":%.3f,\"time_us\":%.1f}", query.line,
+                    query.type.getMethod(), query.arg1, query.arg2, segment == null ? "null" : json(segment),
+                    jsonValue(plan.getResult()), plan.getPath(), startMillis, nanos / 1000.0);
+        }
+        return String.format(Locale.ROOT, "%d,%s,%d,%d,%s,%s,%s,%.3f,%.1f,", query.line, query.type.getMethod(),
+                query.arg1, query.arg2, segment == null ? "" : csv(segment), plan.getResult(), plan.getPath(),
+                startMillis, nanos / 1000.0);
+    }
+
+    /**
+     * @return the row of a line that could not be parsed or run
+     */
+    private String error(int line, String message) {
+        if (format == Format.JSON) {
+            return "{\"line\":" + line + ",\"error\":" + json(message) + "}";
+        }
+        return line + ",,,,,,,,," + csv(message);
+    }
+
+    /**
+     * @return a result as a JSON value, null for a number JSON has no literal for
+     */
+    private static String jsonValue(Object result) {
+        if (result instanceof Float && (((Float) result).isNaN() || ((Float) result).isInfinite())) {
+            return "null";
+        }
+        return String.valueOf(result);
+    }
+
+    /**
+     * @return text as a JSON string, with quotes
+     */
+    static String json(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * @return text as a CSV field, quoted if it holds a comma, a quote or a line break
+     */
+    static String csv(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+
+    private static void usage() {
+        System.err.println("usage: java BatchRunner [--format csv|json] [--threads n] [--errors n] [--cache mb]"
+                + " [--segment name:category:views] dataset [queryFile]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Format format = Format.CSV;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int errorBudget = 0;
+        long cacheBytes = 256L << 20;
+        List<String> segments = new ArrayList<String>();
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i += 2) {
+                if (i + 1 >= args.length) {
+                    usage();
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--format":
+                        format = Format.valueOf(value.toUpperCase());
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--errors":
+                        errorBudget = Integer.parseInt(value);
+                        break;
+                    case "--cache":
+                        cacheBytes = Long.parseLong(value) << 20;
+                        break;
+                    case "--segment":
+                        segments.add(value); // checked once the dataset says how many categories it has
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            usage();
+        }
+        if (i >= args.length || args.length - i > 2) {
+            usage();
+        }
+
+        File dataset = new File(args[i]);
+        Data data;
+        if (dataset.isDirectory()) {
+            data = Data.openColumns(dataset, cacheBytes);
+        } else {
+            data = new Data(0, CATEGORIES);
+            LoadReport report = data.loadData(dataset, errorBudget, null);
+            for (String error : report.getErrors()) {
+                System.err.println("skipped " + error);
+            }
+        }
+        for (String segment : segments) {
+            try {
+                defineSegment(data, segment);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                usage();
+            }
+        }
+
+        String queryFile = args.length - i > 1 ? args[i + 1] : "-";
+        BufferedReader input = new BufferedReader(queryFile.equals("-") ? new InputStreamReader(System.in)
+                : new FileReader(queryFile));
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        int failures = new BatchRunner(data, format, threads).run(input, out);
+        input.close();
+        if (failures > 0) {
+            System.err.println(failures + " queries failed");
+        }
+        System.exit(failures > 0 ? 1 : 0);
+    }
+}
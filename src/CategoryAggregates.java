@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * This class keeps the derived aggregates of the dataset (visitors per category, a histogram of visit counts per
+ * category and the comparison counts between every pair of categories) so that they can be updated one user at a time
+ * as data is ingested instead of being rebuilt with a full scan.
+ *
+ * Every user starts out as an "empty" user with no visits. Loading a user moves it out of the zero bucket of each
+ * histogram and into the bucket of its visit count.
+ *
+ * This class is not thread safe, Data guards it with its read/write lock.
+ */
+public class CategoryAggregates {
+
+    private int users;           // how many users (empty or loaded) are represented
+    private int categories;
+    private int[] visitors;      // visitors[c] = users who visited c at least once
+    private int[][] histograms;  // histograms[c][v] = users who visited c exactly v times
+    private int[][] comparisons; // comparisons[a][b] = users who visited a more than b
+
+    /**
+     * Creates a new set of aggregates with no users
+     * @param categories how many categories are in the dataset
+     */
+    public CategoryAggregates(int categories) {
+        this.categories = categories;
+        visitors = new int[categories];
+        histograms = new int[categories][8];
+        comparisons = new int[categories][categories];
+    }
+
+    /**
+     * Adds users that have not visited any category yet
+     * @param count how many empty users to add
+     */
+    public void addEmptyUsers(int count) {
+        users += count;
+        for (int c = 0; c < categories; c++) {
+            histograms[c][0] += count;
+        }
+    }
+
+    /**
+     * Loads the visits of a user that was previously added as an empty user
+     * @param rows the visit counts of parsed users
+     * @param offset where the user's visit counts start in rows
+     */
+    public void fillUser(int[] rows, int offset) {
+        for (int a = 0; a < categories; a++) {
+            int views = rows[offset + a];
+            if (views == 0) {
+                continue; // still in the zero bucket, and a user can't visit a less than 0 times
+            }
+            visitors[a]++;
+            histograms[a][0]--;
+            bucket(a, views);
+            for (int b = 0; b < categories; b++) {
+                if (views > rows[offset + b]) {
+                    comparisons[a][b]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Increments the histogram bucket of a category, growing the histogram when needed
+     * @param category category whose histogram to change
+     * @param views the bucket to increment
+     */
+    private void bucket(int category, int views) {
+        int[] histogram = histograms[category];
+        if (views >= histogram.length) {
+            histogram = Arrays.copyOf(histogram, Math.max(views + 1, histogram.length * 2));
+            histograms[category] = histogram;
+        }
+        histogram[views]++;
+    }
+
+    /**
+     * @return roughly how many bytes of heap the aggregates take, see MemoryFootprint
+     */
+    public long getMemoryBytes() {
+        long bytes = MemoryFootprint.array(categories, 4) + 2 * MemoryFootprint.array(categories,
+                MemoryFootprint.REFERENCE);
+        for (int c = 0; c < categories; c++) {
+            bytes += MemoryFootprint.array(histograms[c].length, 4) + MemoryFootprint.array(categories, 4);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return how many users are represented by the aggregates
+     */
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * @param category the category to consider
+     * @return how many users visited category at least once
+     */
+    public int getVisitors(int category) {
+        return visitors[category];
+    }
+
+    /**
+     * @param category the category to consider
+     * @return how many buckets the histogram of category has, one more than the largest visit count
+     */
+    public int getBuckets(int category) {
+        return histograms[category].length;
+    }
+
+    /**
+     * @param category the category to consider
+     * @return a copy of the histogram of category, index v holds the users who visited it exactly v times
+     */
+    public int[] getHistogram(int category) {
+        return Arrays.copyOf(histograms[category], histograms[category].length);
+    }
+
+    /**
+     * @param threshold how many visits a user must have made to be counted
+     * @param category the category to consider
+     * @return how many users visited category at least threshold times
+     */
+    public int countAtLeast(int threshold, int category) {
+        if (threshold <= 0) {
+            return users;
+        }
+        int[] histogram = histograms[category];
+        int sum = 0;
+        for (int v = threshold; v < histogram.length; v++) {
+            sum += histogram[v];
+        }
+        return sum;
+    }
+
+    /**
+     * @param category1 category to check for more visits
+     * @param category2 category to check visits against
+     * @return how many users visited category1 more than category2
+     */
+    public int countGreater(int category1, int category2) {
+        return comparisons[category1][category2];
+    }
+}
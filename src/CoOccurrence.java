@@ -0,0 +1,87 @@
+/**
+ * This class holds which categories are read together: for every pair of categories, how many users visited both.
+ * The diagonal holds the visitors of each category. Data builds it in one pass over the users and keeps it until more
+ * data is loaded, so that pair queries don't need a scan.
+ */
+public class CoOccurrence {
+
+    private final int[][] joint; // joint[a][b] = users who visited both a and b
+    private final int users;
+
+    /**
+     * Creates a co-occurrence matrix
+     * @param joint how many users visited both categories of each pair, symmetric
+     * @param users how many users the matrix was built from
+     */
+    public CoOccurrence(int[][] joint, int users) {
+        this.joint = joint;
+        this.users = users;
+    }
+
+    /**
+     * @return how many users the matrix was built from
+     */
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * @return roughly how many bytes of heap the matrix takes, see MemoryFootprint
+     */
+    public long getMemoryBytes() {
+        return MemoryFootprint.array(joint.length, MemoryFootprint.REFERENCE)
+                + joint.length * MemoryFootprint.array(joint.length, 4);
+    }
+
+    /**
+     * @return how many categories the matrix covers
+     */
+    public int getCategories() {
+        return joint.length;
+    }
+
+    /**
+     * @param category1 first category
+     * @param category2 second category
+     * @return how many users visited both categories
+     */
+    public int jointVisitors(int category1, int category2) {
+        return joint[category1][category2];
+    }
+
+    /**
+     * @param category the category to consider
+     * @return how many users visited category
+     */
+    public int visitors(int category) {
+        return joint[category][category];
+    }
+
+    /**
+     * How much more likely users are to visit both categories than if the categories were independent.
+     * @param category1 first category
+     * @param category2 second category
+     * @return P(both) / (P(category1) * P(category2)), 0 if either category has no visitors
+     */
+    public double lift(int category1, int category2) {
+        double expected = (double) visitors(category1) * visitors(category2);
+        if (expected == 0) {
+            return 0;
+        }
+        return jointVisitors(category1, category2) * (double) users / expected;
+    }
+
+    /**
+     * @param category1 first category
+     * @param category2 second category
+     * @return users who visited both divided by users who visited either, 0 if neither has visitors
+     */
+    public double jaccard(int category1, int category2) {
+        int both = jointVisitors(category1, category2);
+        int either = visitors(category1) + visitors(category2) - both;
+        if (either == 0) {
+            return 0;
+        }
+        return (double) both / either;
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only DataArray backed by one file per category column. Opening it only reads the small meta file, and a
+ * column is read from disk the first time a query touches it. At most maxColumns columns are kept in memory, so the
+ * memory used grows with the columns that are actually queried rather than with the whole dataset.
+ *
+ * When a column has to be evicted, the least recently used one is picked with the clock algorithm: every access sets
+ * a used flag, and the eviction sweep clears flags until it finds a column that wasn't used since the last sweep. This
+ * keeps the per-cell cost of a scan to an array read and a flag check, where exact LRU would need a shared update on
+ * every cell.
+ *
+ * Data's tasks fetch each column they need once with getColumn and hold it for their whole range, so a pass that reads
+ * every category of every user loads each column at most once per task instead of once per cell when the cache is
+ * smaller than the dataset. A column evicted while a task holds it stays in memory until the task is done, so the
+ * cache can briefly go over its size by a column per running task.
+ *
+ * The layout of a column directory is columns.meta, holding "users categories", and column-N.bin for every category
+ * N, holding one big-endian int per user.
+ */
+public class ColumnFileArray extends DataArray {
+
+    public static final String META_FILE = "columns.meta";
+
+    private final File dir;
+    private final int users;
+    private final int categories;
+    private final int maxColumns;
+    private final AtomicReferenceArray<int[]> columns; // null while the column is on disk, read without locking
+    private final AtomicIntegerArray used; // clock reference flags, 1 if used since the last sweep
+    private int resident;
+    private int hand;                // where the clock sweep resumes
+
+    /**
+     * Opens a column directory without reading any column
+     * @param dir directory written by write()
+     * @param cacheBytes how much memory the resident columns may use, at least two columns are always kept
+     * @throws IOException if the meta file can't be read or a column file is missing
+     */
+    public ColumnFileArray(File dir, long cacheBytes) throws IOException {
+        this.dir = dir;
+        BufferedReader meta = new BufferedReader(new FileReader(new File(dir, META_FILE)));
+        try {
+            String[] sizes = meta.readLine().trim().split(" ");
+            users = Integer.parseInt(sizes[0]);
+            categories = Integer.parseInt(sizes[1]);
+        } finally {
+            meta.close();
+        }
+        for (int c = 0; c < categories; c++) {
+            // checked up front, only the file size is read, so that a scan task never hits a missing column
+            File column = new File(dir, "column-" + c + ".bin");
+            if (column.length() != (long) users * 4) {
+                throw new IOException(column + " is missing or has the wrong size");
+            }
+        }
+        long columnBytes = Math.max(1, (long) users * 4);
+        maxColumns = (int) Math.max(2, Math.min(categories, cacheBytes / columnBytes));
+        columns = new AtomicReferenceArray<int[]>(categories);
+        used = new AtomicIntegerArray(categories);
+    }
+
+    /**
+     * Writes a dataset as one file per category column
+     * @param array the dataset to write
+     * @param dir the directory to write to, created if needed
+     * @throws IOException
+     */
+    public static void write(DataArray array, File dir) throws IOException {
+        dir.mkdirs();
+        int users = array.getUsers();
+        int categories = array.getCategories();
+        for (int c = 0; c < categories; c++) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, "column-" + c + ".bin")), 1 << 16));
+            try {
+                for (int user = 0; user < users; user++) {
+                    out.writeInt(array.getCategory(user, c));
+                }
+            } finally {
+                out.close();
+            }
+        }
+        Writer meta = new FileWriter(new File(dir, META_FILE)); // written last, so a partial directory can't be opened
+        try {
+            meta.write(users + " " + categories + "\n");
+        } finally {
+            meta.close();
+        }
+    }
+
+    /**
+     * Gets a column, reading it from disk if it isn't resident
+     * @param category the column to get
+     * @return the visit counts of every user for category
+     */
+    private int[] column(int category) {
+        int[] column = columns.get(category);
+        if (column == null) {
+            column = load(category);
+        }
+        if (used.get(category) == 0) {
+            used.set(category, 1); // only written when it changes, so parallel scans don't fight over it
+        }
+        return column;
+    }
+
+    private synchronized int[] load(int category) {
+        if (columns.get(category) != null) {
+            return columns.get(category); // another thread loaded it first
+        }
+        while (resident >= maxColumns) {
+            evict();
+        }
+        int[] column = new int[users];
+        try {
+            FileChannel channel = FileChannel.open(new File(dir, "column-" + category + ".bin").toPath(),
+                    StandardOpenOption.READ);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                int read = 0;
+                while (read < users && channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    IntBuffer ints = buffer.asIntBuffer();
+                    int count = Math.min(ints.remaining(), users - read);
+                    ints.get(column, read, count);
+                    read += count;
+                    buffer.position(count * 4);
+                    buffer.compact();
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read column " + category, e);
+        }
+        columns.set(category, column);
+        used.set(category, 1); // so the next sweep doesn't drop it before the query that wanted it reads it
+        resident++;
+        return column;
+    }
+
+    /**
+     * Drops the first resident column the clock hand finds that wasn't used since the last sweep
+     */
+    private void evict() {
+        while (true) {
+            int c = hand;
+            hand = (hand + 1) % categories;
+            if (columns.get(c) == null) {
+                continue;
+            }
+            if (used.get(c) != 0) {
+                used.set(c, 0);
+            } else {
+                columns.set(c, null);
+                resident--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return how many bytes the column files take on disk
+     */
+    public long getFileBytes() {
+        return (long) users * 4 * categories + new File(dir, META_FILE).length();
+    }
+
+    /**
+     * @return how many columns are in memory
+     */
+    public synchronized int getResidentColumns() {
+        return resident;
+    }
+
+    public long getMemoryBytes() {
+        return getResidentColumns() * MemoryFootprint.array(users, 4);
+    }
+
+    public int getCategory(int user, int category) {
+        return column(category)[user];
+    }
+
+    public int[] getColumn(int category) {
+        return column(category);
+    }
+
+    public boolean isColumnar() {
+        return true;
+    }
+
+    public void setCategory(int user, int category, int val) {
+        throw new UnsupportedOperationException("column files are read-only");
+    }
+
+    public void addUsers(int count) {
+        throw new UnsupportedOperationException("column files are read-only");
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public int getCategories() {
+        return categories;
+    }
+}
@@ -1,8 +1,24 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Scanner;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Pattern;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 
 /**
  * The Data class is responsible for reading the data file into its
@@ -16,6 +32,38 @@ import java.util.regex.Pattern;
  * How many users viewed X _____ number of times (countThresholdQuery)
  * What percent of users looked at X more than Y (percentageComparisonQuery)
  *
+ * More session files can be added to a loaded instance with appendData. The per-category aggregates are updated as
+ * each user is stored, and queries never see a half appended file.
+ *
+ * loadData can be given an error budget to skip bad lines instead of failing on the first one. It returns a LoadReport
+ * with the line number and reason of the skipped lines, and can write them to a quarantine file.
+ *
+ * While a file loads, the parse tasks count the users, visitors and views of what they parse into IngestCounters,
+ * which liveCounts() reads at any time without waiting for the load. Queries that only need the visitors of a category
+ * are answered from these counters, even when the other aggregates aren't maintained.
+ *
+ * After a load the dataset is measured with MemoryFootprint and moved to the most compact layout that keeps scans
+ * fast, usually one byte per cell, and the choice is logged. While the cells are copied both layouts are in memory, so
+ * the load peaks at the old cells plus the new ones, 1.25 times the int rows when moving to bytes. appendData() keeps
+ * the current layout, widening packed cells when a count doesn't fit, and compact() moves it again on request.
+ * footprint() reports the memory every structure takes.
+ *
+ * Each query is planned by a QueryPlanner, which picks between the aggregates and a full scan. Use explain() to see
+ * the plan of a query and its estimated and actual cost. A category argument outside 0 to getCategories() - 1 throws
+ * IllegalArgumentException before the query is planned, since no path checks the categories it indexes by.
+ *
+ * Every query also has an async version that returns a future right away, for callers such as the GUI that must not
+ * block. Cancelling the future before the query starts means it never runs.
+ *
+ * visitQuantile and totalViewsQuantile give exact quantiles from counting histograms. Quantile sketches of the visits
+ * to every category and of the total views per user are kept up to date as users are stored, for quantiles within 1%
+ * in constant time.
+ *
+ * defineSegment materializes a named group of users, such as the users who visited a category at least 5 times, and
+ * every query has a version limited to a segment whose cost grows with the segment's size.
+ *
+ * setQueryLog records every query to a QueryLog so that the workload can be replayed with WorkloadReplay.
+ *
  * @author Robert Bofinger, Preston Mackert
  *
  */
@@ -23,17 +71,33 @@ import java.util.regex.Pattern;
 public class Data {
 
     final private int taskCount = 24; // How many tasks to create per query.
+    private static final Logger LOGGER = Logger.getLogger(Data.class.getName());
 
     private DataArray msnbcData;
-    private int usersProcessed; // represents how many lines are loaded
-    private int totalUsers;
+    private CategoryAggregates aggregates; // kept up to date as users are stored, null if not maintained
+    private IngestCounters counters; // counted while parsing, null for column files
+    private QuantileSketch[] sketches; // visits per category, then total views, of loaded users. null for column files
+    private QueryPlanner planner;
+    private volatile CoOccurrence coOccurrence; // built on first use, dropped when users are stored
+    private volatile int usersProcessed; // represents how many lines are loaded
+    private volatile int totalUsers;
     private int categories;
     private WorkerThread[] threadPool;
     LinkedBlockingQueue<Runnable> taskQueue;
+    private ScanJob[] scanJobs; // pooled scans, how many scan queries can run at once
+    private Semaphore freeScanJobs; // one permit per ScanJob not in use, further scans wait for one
+    private volatile QueryLog queryLog; // records every query when set
+    private final Map<String, Segment> segments = new ConcurrentHashMap<String, Segment>();
+    private final ThreadLocal<QueryPlanner.Plan> plans = ThreadLocal.withInitial(QueryPlanner.Plan::new);
+    private ExecutorService queryThreads; // run the async queries, which wait on the thread pool
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // queries read, loading writes
 
     /**
      * This class defines a task that will count how many users in its subarray that have visited category by atleast
-     * a certain threshold.
+     * a certain threshold. Tasks are pooled in a ScanJob and set up again for every query.
+     *
+     * When the query is limited to a segment, the range is over the segment's ids, or over the words of its bitmap,
+     * instead of over the users.
      */
     private class CountTask implements Runnable {
 
@@ -42,43 +106,35 @@ public class Data {
         private int end;
         private int category;
         private int threshold;
-        private CountDownLatch latch; // used to keep track of how many tasks are still working/queued.
-
-        /**
-         * Creates a new task to count how many users visited a category in a given sublist
-         * @param start starting index (inclusive)
-         * @param end ending index (exclusive)
-         * @param category category to count
-         * @param latch latch to signal when task is done
-         */
-        public CountTask(int start, int end, int category, CountDownLatch latch) {
-            this(start, end, category, 1, latch);
-        }
+        private int[] ids;   // the segment's ids, null if not scanning a list of ids
+        private long[] bits; // the segment's bitmap, null if not scanning a bitmap
 
         /**
-         * Creates a new task to count how many users visited a category in a given sublist
+         * Sets up the task to count how many users visited a category in a given sublist
          * @param start starting index (inclusive)
          * @param end ending index (exclusive)
          * @param category category to count
          * @param threshold minimum amount of visits to a page needed for it to be counted
-         * @param latch latch to signal when task is done
+         * @param segment the segment to scan, null for every user
          */
-        public CountTask(int start, int end, int category, int threshold, CountDownLatch latch) {
+        public void reset(int start, int end, int category, int threshold, Segment segment) {
             this.start = start;
             this.end = end;
             this.category = category;
-            this.latch = latch;
             this.threshold = threshold;
+            ids = segment == null ? null : segment.getIds();
+            bits = segment == null ? null : segment.getBits();
+            int length = domainLength(segment);
 
-            if (this.start > msnbcData.getUsers()) {
-                // if is out of range we should fix it.
-                this.start = msnbcData.getUsers() -1 ;
+            if (this.start > length) {
+                // if is out of range we should fix it. An empty range, otherwise the last user is counted again.
+                this.start = length;
             }
 
-            if (this.end > msnbcData.getUsers()) {
+            if (this.end > length) {
                 // if end is out of range we should fix it.
                 // this case can easily happen during the division step of the query algorithm
-                this.end = msnbcData.getUsers();
+                this.end = length;
             }
         }
 
@@ -90,21 +146,70 @@ public class Data {
         }
 
         public void run() {
+            int[] column = msnbcData.getColumn(category);
+            if (column != null) {
+                result = countColumn(column);
+                return;
+            }
             int count = 0;
-            for(int i=start; i<end; i++) {
+            if (ids != null) {
+                for (int k = start; k < end; k++) {
+                    if (msnbcData.getCategory(ids[k], category) >= threshold) {
+                        count++;
+                    }
+                }
+            } else if (bits != null) {
+                for (int w = start; w < end; w++) {
+                    for (long word = bits[w]; word != 0; word &= word - 1) {
+                        if (msnbcData.getCategory((w << 6) + Long.numberOfTrailingZeros(word), category) >= threshold) {
+                            count++;
+                        }
+                    }
+                }
+            } else {
+                for(int i=start; i<end; i++) {
 
-                if(msnbcData.getCategory(i, category) >= threshold) {
-                    count ++;
+                    if(msnbcData.getCategory(i, category) >= threshold) {
+                        count ++;
+                    }
                 }
             }
             result = count;
-            latch.countDown();
+        }
+
+        /**
+         * Counts over a column fetched once for the whole range, for storage kept in columns
+         */
+        private int countColumn(int[] column) {
+            int count = 0;
+            if (ids != null) {
+                for (int k = start; k < end; k++) {
+                    if (column[ids[k]] >= threshold) {
+                        count++;
+                    }
+                }
+            } else if (bits != null) {
+                for (int w = start; w < end; w++) {
+                    for (long word = bits[w]; word != 0; word &= word - 1) {
+                        if (column[(w << 6) + Long.numberOfTrailingZeros(word)] >= threshold) {
+                            count++;
+                        }
+                    }
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    if (column[i] >= threshold) {
+                        count++;
+                    }
+                }
+            }
+            return count;
         }
     }
 
     /**
      * This class defines a task that counts how many users in a subarray that have visited one category more than
-     * another category.
+     * another category. Tasks are pooled in a ScanJob and set up again for every query.
      */
     private class CompareTask implements Runnable{
         private int result;
@@ -112,29 +217,32 @@ public class Data {
         private int end;
         private int category1;
         private int category2;
-        private CountDownLatch latch;
+        private int[] ids;   // the segment's ids, null if not scanning a list of ids
+        private long[] bits; // the segment's bitmap, null if not scanning a bitmap
 
         /**
-         * Creates a new task to count how many users have visited category1 more than category2
+         * Sets up the task to count how many users have visited category1 more than category2
          * @param start starting index of subarray
          * @param end ending index of subarray
          * @param category1 category to check for more visits
          * @param category2 category to check visits against
-         * @param latch latch to signal when task is done
+         * @param segment the segment to scan, null for every user
          */
-        public CompareTask (int start, int end, int category1, int category2, CountDownLatch latch) {
+        public void reset(int start, int end, int category1, int category2, Segment segment) {
             this.start = start;
             this.end = end;
             this.category1 = category1;
             this.category2 = category2;
-            this.latch = latch;
+            ids = segment == null ? null : segment.getIds();
+            bits = segment == null ? null : segment.getBits();
+            int length = domainLength(segment);
 
-            if (this.start > msnbcData.getUsers()) {
-                this.start = msnbcData.getUsers() - 1;
+            if (this.start > length) {
+                this.start = length;
             }
 
-            if (this.end > msnbcData.getUsers()) {
-                this.end = msnbcData.getUsers();
+            if (this.end > length) {
+                this.end = length;
             }
         }
 
@@ -149,32 +257,434 @@ public class Data {
          * runs the task
          */
         public void run(){
+            int[] column1 = msnbcData.getColumn(category1);
+            if (column1 != null) {
+                result = compareColumns(column1, msnbcData.getColumn(category2));
+                return;
+            }
             int count = 0;
-            for(int i=start; i<end; i++){
-                if(msnbcData.getCategory(i, category1) > msnbcData.getCategory(i, category2)){
-                    count++;
+            if (ids != null) {
+                for (int k = start; k < end; k++) {
+                    int user = ids[k];
+                    if (msnbcData.getCategory(user, category1) > msnbcData.getCategory(user, category2)) {
+                        count++;
+                    }
+                }
+            } else if (bits != null) {
+                for (int w = start; w < end; w++) {
+                    for (long word = bits[w]; word != 0; word &= word - 1) {
+                        int user = (w << 6) + Long.numberOfTrailingZeros(word);
+                        if (msnbcData.getCategory(user, category1) > msnbcData.getCategory(user, category2)) {
+                            count++;
+                        }
+                    }
+                }
+            } else {
+                for(int i=start; i<end; i++){
+                    if(msnbcData.getCategory(i, category1) > msnbcData.getCategory(i, category2)){
+                        count++;
+                    }
                 }
             }
             result = count;
-            latch.countDown();
+        }
+
+        /**
+         * Compares two columns fetched once for the whole range, for storage kept in columns
+         */
+        private int compareColumns(int[] column1, int[] column2) {
+            int count = 0;
+            if (ids != null) {
+                for (int k = start; k < end; k++) {
+                    if (column1[ids[k]] > column2[ids[k]]) {
+                        count++;
+                    }
+                }
+            } else if (bits != null) {
+                for (int w = start; w < end; w++) {
+                    for (long word = bits[w]; word != 0; word &= word - 1) {
+                        int user = (w << 6) + Long.numberOfTrailingZeros(word);
+                        if (column1[user] > column2[user]) {
+                            count++;
+                        }
+                    }
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    if (column1[i] > column2[i]) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * This class defines a reusable scan: the count and compare tasks of one query, and the counters that hand the
+     * tasks out to the worker threads and tell the caller when they are all done. A fixed set of jobs is created with
+     * the class and reused by every query, so that a scan allocates nothing once the JVM is warmed up.
+     */
+    private class ScanJob {
+        private final CountTask[] countTasks = new CountTask[taskCount];
+        private final CompareTask[] compareTasks = new CompareTask[taskCount];
+        private Runnable[] tasks;                                         // the tasks of the current query
+        private final AtomicBoolean inUse = new AtomicBoolean();          // claimed by a query
+        private final AtomicInteger next = new AtomicInteger(taskCount); // next task to hand out, none when >= taskCount
+        private final AtomicInteger remaining = new AtomicInteger();     // tasks that haven't finished
+        private volatile Thread waiter;                                   // the query's thread, woken at the end
+        private volatile RuntimeException failure;                        // the first task that threw, null if none
+
+        ScanJob() {
+            for (int i = 0; i < taskCount; i++) {
+                countTasks[i] = new CountTask();
+                compareTasks[i] = new CompareTask();
+            }
+        }
+
+        /**
+         * Runs the next task of the job, if any is left
+         * @return false if every task has been handed out
+         */
+        boolean runOne() {
+            int i = next.getAndIncrement();
+            if (i >= taskCount) {
+                return false;
+            }
+            try {
+                tasks[i].run();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e; // rethrown by scan() once every task is done
+                }
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The queue of general tasks (loading, distributions). Adding a task wakes the worker threads, which park when
+     * there is neither a task nor a scan job to run.
+     */
+    private class WorkQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        public void put(Runnable task) throws InterruptedException {
+            super.put(task);
+            wakeWorkers();
+        }
+
+        public boolean offer(Runnable task) {
+            boolean added = super.offer(task);
+            wakeWorkers();
+            return added;
+        }
+
+        public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+            boolean added = super.offer(task, timeout, unit);
+            wakeWorkers();
+            return added;
+        }
+    }
+
+    /**
+     * A task of a one-off parallel pass over the users: a distribution, the co-occurrence matrix or a segment. The
+     * latch is counted down even when the task throws, and the failure is kept for the query to rethrow with
+     * awaitPass, so a failing task never leaves its query waiting forever.
+     */
+    private abstract class PassTask implements Runnable {
+        private final CountDownLatch latch;
+        private RuntimeException failure; // published by the latch
+
+        PassTask(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        /**
+         * Does the task's share of the pass
+         */
+        abstract void compute();
+
+        public final void run() {
+            try {
+                compute();
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * Waits for every task of a pass
+     * @throws RuntimeException the first failure of a task, once all are done
+     */
+    private static void awaitPass(CountDownLatch latch, PassTask[] tasks) throws InterruptedException {
+        latch.await();
+        for (PassTask task : tasks) {
+            if (task.failure != null) {
+                throw task.failure;
+            }
+        }
+    }
+
+    /**
+     * The distributions that a DistributionTask can compute
+     */
+    private enum Distribution { CATEGORY_VISITS, TOTAL_VIEWS, DISTINCT_CATEGORIES, DISTINCT_BY_TOP_CATEGORY }
+
+    /**
+     * This class defines a task that builds a distribution over the users of a subarray into its own array of counts,
+     * which are added together once every task is done.
+     */
+    private class DistributionTask extends PassTask {
+        private int[] counts = new int[32];
+        private int start;
+        private int end;
+        private Distribution distribution;
+        private int category;
+
+        /**
+         * Creates a new task to build a distribution over a sublist
+         * @param start starting index (inclusive)
+         * @param end ending index (exclusive)
+         * @param distribution which distribution to build
+         * @param category category to consider for CATEGORY_VISITS
+         * @param latch latch to signal when task is done
+         */
+        public DistributionTask(int start, int end, Distribution distribution, int category, CountDownLatch latch) {
+            super(latch);
+            this.start = Math.min(start, msnbcData.getUsers());
+            this.end = Math.min(end, msnbcData.getUsers());
+            this.distribution = distribution;
+            this.category = category;
+        }
+
+        /**
+         * @return the counts of the task, indexed by value
+         */
+        public int[] getResult() {
+            return counts;
+        }
+
+        private void add(int value) {
+            if (value >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(value + 1, counts.length * 2));
+            }
+            counts[value]++;
+        }
+
+        void compute() {
+            if (msnbcData.isColumnar()) {
+                runColumns();
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                if (distribution == Distribution.CATEGORY_VISITS) {
+                    add(msnbcData.getCategory(i, category));
+                    continue;
+                }
+                int total = 0;
+                int distinct = 0;
+                int top = -1;
+                for (int c = 0; c < categories; c++) {
+                    int views = msnbcData.getCategory(i, c);
+                    if (views > 0) {
+                        total += views;
+                        distinct++;
+                        if (top < 0 || views > msnbcData.getCategory(i, top)) {
+                            top = c;
+                        }
+                    }
+                }
+                if (distribution == Distribution.TOTAL_VIEWS) {
+                    add(total);
+                } else if (distribution == Distribution.DISTINCT_CATEGORIES) {
+                    add(distinct);
+                } else if (top >= 0) {
+                    add(top * (categories + 1) + distinct);
+                }
+            }
+        }
+
+        /**
+         * Builds the distribution a column at a time, for storage kept in columns, so that each column is fetched
+         * once for the whole range instead of once per cell
+         */
+        private void runColumns() {
+            if (distribution == Distribution.CATEGORY_VISITS) {
+                int[] column = msnbcData.getColumn(category);
+                for (int i = start; i < end; i++) {
+                    add(column[i]);
+                }
+                return;
+            }
+            int users = end - start;
+            int[] total = new int[users];
+            int[] distinct = new int[users];
+            int[] top = new int[users];
+            int[] topViews = new int[users];
+            Arrays.fill(top, -1);
+            for (int c = 0; c < categories; c++) {
+                int[] column = msnbcData.getColumn(c);
+                for (int u = 0; u < users; u++) {
+                    int views = column[start + u];
+                    if (views > 0) {
+                        total[u] += views;
+                        distinct[u]++;
+                        if (top[u] < 0 || views > topViews[u]) {
+                            top[u] = c;
+                            topViews[u] = views;
+                        }
+                    }
+                }
+            }
+            for (int u = 0; u < users; u++) {
+                if (distribution == Distribution.TOTAL_VIEWS) {
+                    add(total[u]);
+                } else if (distribution == Distribution.DISTINCT_CATEGORIES) {
+                    add(distinct[u]);
+                } else if (top[u] >= 0) {
+                    add(top[u] * (categories + 1) + distinct[u]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * This class defines a task that counts, for every pair of categories, the users in its subarray who visited
+     * both. Each user is reduced to a mask of the categories it visited, a long per 64 categories, and only the pairs
+     * in the mask are counted. The masks of a range are built first, a column at a time when the storage is kept in
+     * columns.
+     */
+    private class CoOccurrenceTask extends PassTask {
+        private int[] joint = new int[categories * categories]; // this task's counts, [a * categories + b]
+        private int start;
+        private int end;
+
+        /**
+         * Creates a new task to count co-occurrences in a sublist
+         * @param start starting index (inclusive)
+         * @param end ending index (exclusive)
+         * @param latch latch to signal when task is done
+         */
+        public CoOccurrenceTask(int start, int end, CountDownLatch latch) {
+            super(latch);
+            this.start = Math.min(start, msnbcData.getUsers());
+            this.end = Math.min(end, msnbcData.getUsers());
+        }
+
+        /**
+         * @return the counts of the task, [a * categories + b] for a <= b
+         */
+        public int[] getResult() {
+            return joint;
+        }
+
+        void compute() {
+            int words = (categories + 63) >>> 6;
+            long[] masks = new long[(end - start) * words]; // the categories each user visited, words per user
+            if (msnbcData.isColumnar()) {
+                for (int c = 0; c < categories; c++) { // a column at a time, each fetched once for the range
+                    int[] column = msnbcData.getColumn(c);
+                    for (int i = start; i < end; i++) {
+                        if (column[i] > 0) {
+                            masks[(i - start) * words + (c >>> 6)] |= 1L << c;
+                        }
+                    }
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    for (int c = 0; c < categories; c++) {
+                        if (msnbcData.getCategory(i, c) > 0) {
+                            masks[(i - start) * words + (c >>> 6)] |= 1L << c;
+                        }
+                    }
+                }
+            }
+            for (int user = 0; user < end - start; user++) {
+                int offset = user * words;
+                for (int wordA = 0; wordA < words; wordA++) {
+                    for (long rest = masks[offset + wordA]; rest != 0; rest &= rest - 1) {
+                        int row = ((wordA << 6) + Long.numberOfTrailingZeros(rest)) * categories;
+                        for (long others = rest; others != 0; others &= others - 1) {
+                            joint[row + (wordA << 6) + Long.numberOfTrailingZeros(others)]++;
+                        }
+                        for (int wordB = wordA + 1; wordB < words; wordB++) {
+                            for (long others = masks[offset + wordB]; others != 0; others &= others - 1) {
+                                joint[row + (wordB << 6) + Long.numberOfTrailingZeros(others)]++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * This class defines a task that finds the users in its subarray who visited a category at least a given number of
+     * times, the members of a segment. The ids of every task are joined in order once all are done.
+     */
+    private class SegmentTask extends PassTask {
+        private int[] members = new int[64];
+        private int size;
+        private int start;
+        private int end;
+        private int category;
+        private int minViews;
+
+        /**
+         * Creates a new task to find the members of a segment in a sublist
+         * @param start starting index (inclusive)
+         * @param end ending index (exclusive)
+         * @param category category the members visited
+         * @param minViews how many times they visited it at least
+         * @param latch latch to signal when task is done
+         */
+        public SegmentTask(int start, int end, int category, int minViews, CountDownLatch latch) {
+            super(latch);
+            this.start = Math.min(start, msnbcData.getUsers());
+            this.end = Math.min(end, msnbcData.getUsers());
+            this.category = category;
+            this.minViews = minViews;
+        }
+
+        void compute() {
+            int[] column = msnbcData.getColumn(category); // null unless stored in columns
+            for (int i = start; i < end; i++) {
+                if ((column != null ? column[i] : msnbcData.getCategory(i, category)) >= minViews) {
+                    if (size == members.length) {
+                        members = Arrays.copyOf(members, size * 2);
+                    }
+                    members[size++] = i;
+                }
+            }
         }
     }
 
 
     /**
      * This class defines the worker threads that make up the thread pool.
-     * A WorkerThread runs in a loop in which it retrieves a task from the
-     * taskQueue and calls the run() method in that task.  Note that if
-     * the queue is empty, the thread blocks until a task becomes available
-     * in the queue.  The constructor starts the thread, so there is no
+     * A WorkerThread runs in a loop in which it runs a task of an active
+     * scan job, or else retrieves a task from the taskQueue and calls the
+     * run() method in that task.  Note that if there is neither, the thread
+     * parks until a query or a new task wakes it.  The constructor starts the thread, so there is no
      * need for the main program to do so.  The thread will run at a priority
      * that is one less than the priority of the thread that calls the
      * constructor.
      *
      * A WorkerThread is designed to run in an infinite loop.  It will
-     * end only when the Java virtual machine exits. (This assumes that
-     * the tasks that are executed don't throw exceptions, which is true
-     * in this program.)  The constructor sets the thread to run as
+     * end only when the Java virtual machine exits.  A task that throws
+     * records its failure for the query that queued it and counts itself
+     * done (see PassTask and ScanJob.runOne), and the loop catches anything
+     * that still escapes so that the worker survives.  The constructor sets the thread to run as
      * a daemon thread; the Java virtual machine will exit automatically when
      * the only threads are daemon threads.  (In this program, this is not
      * necessary since the virtual machine is set to exit when the
@@ -201,26 +711,66 @@ public class Data {
         }
         public void run() {
             while (true) {
-                try {
-                    Runnable task = taskQueue.take(); // wait for task if necessary
-                    task.run();
+                if (runScanTask()) {
+                    continue;
                 }
-                catch (InterruptedException e) {
+                Runnable task = taskQueue.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // the tasks report their own failures, this only keeps the worker alive
+                        LOGGER.warning("task failed: " + e);
+                    }
+                    continue;
                 }
+                LockSupport.park(this); // returns at once if woken since the checks above
             }
         }
     }
 
     /**
-     * Constructs a new Data class
+     * Constructs a new Data class that maintains aggregates
      * @param totalUsers the total amount of users in the data file
      * @param categories the total amount of categories in the data file
      */
     public Data(int totalUsers, int categories) {
-        msnbcData = new DataArray(totalUsers, categories);
+        this(totalUsers, categories, true);
+    }
+
+    /**
+     * Constructs a new Data class
+     * @param totalUsers the total amount of users in the data file
+     * @param categories the total amount of categories in the data file
+     * @param maintainAggregates false to skip the aggregates, which makes loading cheaper but leaves only visitor counts unscanned
+     */
+    public Data(int totalUsers, int categories, boolean maintainAggregates) {
+        this(new DataArray(totalUsers, categories), maintainAggregates);
+    }
+
+    /**
+     * Constructs a new Data class around existing storage. Every user in the storage counts as processed.
+     * @param storage the storage of the dataset
+     * @param maintainAggregates false to skip the aggregates, which makes loading cheaper but leaves only visitor counts unscanned
+     */
+    private Data(DataArray storage, boolean maintainAggregates) {
+        msnbcData = storage;
+        int totalUsers = storage.getUsers();
+        int categories = storage.getCategories();
+        if (maintainAggregates) {
+            aggregates = new CategoryAggregates(categories);
+            aggregates.addEmptyUsers(totalUsers);
+        }
+        counters = new IngestCounters(categories);
+        sketches = newSketches(categories);
         this.totalUsers = totalUsers;
         this.categories = categories;
-        taskQueue = new LinkedBlockingQueue<Runnable>();
+        taskQueue = new WorkQueue();
+        scanJobs = new ScanJob[8];
+        for (int i = 0; i < scanJobs.length; i++) {
+            scanJobs[i] = new ScanJob();
+        }
+        freeScanJobs = new Semaphore(scanJobs.length);
 
         // Create the worker thread pool
         int processors = Runtime.getRuntime().availableProcessors();
@@ -228,119 +778,892 @@ public class Data {
         for (int i = 0; i < processors; i++) {
             threadPool[i] = new WorkerThread();
         }
+        planner = new QueryPlanner(taskCount, processors);
+        planner.setAggregates(aggregates);
+        planner.setCounters(counters);
+
+        // A query blocks until its tasks finish, so async queries can't run on the worker threads themselves
+        queryThreads = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "data query");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * Loads data from a file into the class. Use getUsersProcessed() to get the progress of loading.
-     * @param dataFile a file containing formatted data
-     * @throws IOException
+     * Opens a dataset saved with saveColumns. Only the meta file is read, each category column is read the first time
+     * a query needs it and the least recently used columns are dropped when more than cacheBytes would be in memory.
+     * The returned Data is read-only and has no aggregates, so its queries scan the loaded columns.
+     * @param dir directory written by saveColumns
+     * @param cacheBytes how much memory the loaded columns may use
+     * @return the opened dataset
+     * @throws IOException if the directory can't be read
      */
-    public void loadData(File dataFile) throws IOException{
-        int lineNum = 0;
-
-        BufferedReader br = new BufferedReader(new FileReader(dataFile));
-        String line;
-        Pattern splitSpace = Pattern.compile(" ");
-
-        while ((line = br.readLine()) != null){
-            String[] numbers = splitSpace.split(line);
-
-            for (String number : numbers){
-                int category = Integer.parseInt(number) - 1; // views are stored in file as 1-17 but stored in program as 0-16
-                msnbcData.setCategory(lineNum, category, msnbcData.getCategory(lineNum, category) + 1); // increment category
-            }
+    public static Data openColumns(File dir, long cacheBytes) throws IOException {
+        Data data = new Data(new ColumnFileArray(dir, cacheBytes), false);
+        data.usersProcessed = data.totalUsers;
+        data.counters = null; // counting the columns would read them all
+        data.sketches = null;
+        data.planner.setCounters(null);
+        return data;
+    }
 
-            usersProcessed++;
-            lineNum++;
+    /**
+     * Saves the dataset as one file per category column, to be opened later with openColumns
+     * @param dir the directory to write to, created if needed
+     * @throws IOException
+     */
+    public void saveColumns(File dir) throws IOException {
+        lock.readLock().lock();
+        try {
+            ColumnFileArray.write(msnbcData, dir);
+        } finally {
+            lock.readLock().unlock();
         }
-
-        br.close();
-
     }
 
     /**
-     * Used to check on the progress of loading the file
-     * @return the amount of users who have been processed from the file so far
+     * Loads data from a file into the class. Use getUsersProcessed() to get the progress of loading.
+     * The file may be gzip compressed, it is decompressed and parsed in a pipeline (see PipelinedLoader).
+     * @param dataFile a file containing formatted data
+     * @throws IOException if the file can't be read or has a bad line, the message gives its line number
      */
-    public int getUsersProcessed(){
-        return usersProcessed;
+    public void loadData(File dataFile) throws IOException{
+        loadData(dataFile, 0, null);
     }
 
     /**
-     * @return the total amount of users in the dataset
+     * Loads data from a file into the class, skipping up to errorBudget bad lines instead of failing on the first.
+     * Skipped lines store no user, so the rows left over at the end of the dataset stay empty users and
+     * getUsersProcessed() ends below getTotalUsers().
+     * @param dataFile a file containing formatted data
+     * @param errorBudget how many bad lines to skip at most, 0 to fail on the first one
+     * @param quarantine file to write the skipped lines to, null to only count them
+     * @return the lines read, stored and skipped, with the line number and reason of the first bad lines
+     * @throws IOException if the file can't be read or has more bad lines than errorBudget
      */
-    public int getTotalUsers(){
-        return totalUsers;
+    public LoadReport loadData(File dataFile, int errorBudget, File quarantine) throws IOException{
+        OutputStream bad = quarantine == null ? null : new BufferedOutputStream(new FileOutputStream(quarantine));
+        LoadReport report;
+        lock.writeLock().lock(); // queries wait for the load to finish
+        try {
+            PipelinedLoader loader = new PipelinedLoader(taskQueue, categories);
+            loader.setCounters(counters);
+            loader.setSketches(sketches);
+            loader.setErrorBudget(errorBudget);
+            loader.setQuarantine(bad);
+            report = loader.load(dataFile, (rows, users) -> {
+                for (int i = 0; i < users; i++) {
+                    storeUser(rows, i * categories);
+                }
+            });
+            LOGGER.info("loaded " + dataFile + ": " + report);
+            compactStorage();
+        } catch (IOException | RuntimeException e) {
+            recount(); // parsed users after the failure were counted but never stored
+            if (bad != null) {
+                try {
+                    bad.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError); // the load failure is the one to report
+                }
+            }
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (bad != null) {
+            bad.close(); // the users are stored, but a quarantine that didn't reach the disk is still an error
+        }
+        return report;
     }
 
     /**
-     * Using multithreading, count the amount of users who have visited a given category at least once.
-     *
-     * @param category the category to consider
-     * @return the count of uses who have visited category.
+     * Appends the users of another session file, plain or gzip compressed, after the users that are already loaded.
+     * The file is parsed before any lock is taken, then the users are stored in one step so that queries see either
+     * none or all of the file. The users are stored in the current layout, call compact() after a batch of appends to
+     * move to a smaller one.
+     * @param dataFile a file containing formatted data
+     * @return how many users were appended
+     * @throws IOException
      */
+    public int appendData(File dataFile) throws IOException{
+        List<int[]> staged = new ArrayList<int[]>();
+        int[] total = new int[1];
+        IngestCounters stagedCounts = new IngestCounters(categories);
+        QuantileSketch[] stagedSketches = newSketches(categories);
+        PipelinedLoader loader = new PipelinedLoader(taskQueue, categories);
+        loader.setCounters(stagedCounts);
+        loader.setSketches(stagedSketches);
+        loader.load(dataFile, (rows, users) -> {
+            staged.add(Arrays.copyOf(rows, users * categories)); // the loader reuses rows for the next buffer
+            total[0] += users;
+        });
 
-    private int countUsersByCategory(int category) throws InterruptedException {
-        return countUsersByCategory(1, category);
+        lock.writeLock().lock();
+        try {
+            for (int[] rows : staged) {
+                for (int offset = 0; offset < rows.length; offset += categories) {
+                    storeUser(rows, offset);
+                }
+            }
+            if (counters != null) {
+                counters.add(stagedCounts.snapshot());
+            }
+            if (sketches != null) {
+                for (int i = 0; i <= categories; i++) {
+                    sketches[i].merge(stagedSketches[i]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return total[0];
     }
 
     /**
-     * Using multithreading, count the amount of users who have visited a given category by atleast a given threshold.
-     *
-     * @param threshold how many visits to a category must be made for the user to be counted
-     * @param category the category to consider
-     * @return the count of uses who have visited category.
+     * Stores a user in the next free row, growing the array when the preallocated rows are used up, and updates the
+     * aggregates. Must be called while holding the write lock.
+     * @param rows the visit counts of parsed users
+     * @param offset where the user's visit counts start in rows
      */
-    private int countUsersByCategory(int threshold, int category) throws InterruptedException {
-        // dataSubsize is the size of each sublist. We use float division and round up to make sure we don't come up short.
-        int dataSubsize = (int) Math.ceil((double) msnbcData.getUsers() / (double) taskCount);
-        CountTask[] tasks = new CountTask[taskCount]; // array of created tasks
-        CountDownLatch countLatch = new CountDownLatch(taskCount); // lets us block until all tasks finish.
-        // create the tasks and place them in the pool of tasks
-        for (int i = 0; i < taskCount; i++) {
-            CountTask newTask = new CountTask(i * dataSubsize, (i + 1) * dataSubsize, category, threshold, countLatch);
-            tasks[i] = newTask;
-            taskQueue.put(newTask);
+    private void storeUser(int[] rows, int offset) {
+        int user = usersProcessed;
+        if (user >= msnbcData.getUsers()) {
+            msnbcData.addUsers(1);
+            if (aggregates != null) {
+                aggregates.addEmptyUsers(1);
+            }
+            totalUsers = msnbcData.getUsers();
         }
-        countLatch.await(); // waits for all tasks to finish
-        int sum = 0;
-        // sum the results of the tasks
-        for (CountTask task : tasks) {
-            sum += task.getResult();
+        for (int category = 0; category < categories; category++) {
+            msnbcData.setCategory(user, category, rows[offset + category]);
         }
-        return sum;
+        if (aggregates != null) {
+            aggregates.fillUser(rows, offset);
+        }
+        coOccurrence = null;
+        usersProcessed++;
     }
 
     /**
-     * Using multithreading, count the amount of users who a visited a given category more than another category.
-     *
-     * @param category1 category to consider
-     * @param category2 category to check again
-     * @return the amount of users who have visited category1 more than category2
+     * Moves the dataset to the most compact layout that keeps scans fast, if that takes less memory, and logs the
+     * choice. Called by loadData(), and worth calling after a batch of appendData() calls, which store users in the
+     * current layout. Holds the write lock while every cell is read once to measure the dataset and once more to copy
+     * it, so queries wait for about two scans, and until the copy is done the old and the new cells are both in memory.
+     * @return true if the cells moved to a smaller layout
+     */
+    public boolean compact() {
+        lock.writeLock().lock();
+        try {
+            return compactStorage();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Does the work of compact(). Must be called while holding the write lock.
+     */
+    private boolean compactStorage() {
+        if (msnbcData instanceof ColumnFileArray) {
+            return false; // read-only, and measuring it would read every column
+        }
+        MemoryFootprint footprint = new MemoryFootprint(msnbcData);
+        DataArray compacted = footprint.convert(msnbcData);
+        if (compacted == msnbcData) {
+            LOGGER.info(footprint.summary());
+            return false;
+        }
+        msnbcData = compacted;
+        LOGGER.info(footprint.summary() + ", switched to " + footprint.getBestLayout());
+        return true;
+    }
+
+    /**
+     * Measures the memory taken by the dataset and its aggregates, and what the cells would take in other layouts.
+     * Column files are only measured by their resident columns and their size on disk, since reading their cells
+     * would load every column into the cache.
+     * @return the report
+     */
+    public MemoryFootprint footprint() {
+        return footprint(!(msnbcData instanceof ColumnFileArray));
+    }
+
+    /**
+     * Measures the memory taken by the dataset and its aggregates
+     * @param readCells true to read every cell and predict the other layouts, which for column files loads every
+     *                  column in turn
+     * @return the report
+     */
+    public MemoryFootprint footprint(boolean readCells) {
+        lock.readLock().lock();
+        try {
+            MemoryFootprint footprint = new MemoryFootprint(msnbcData, readCells);
+            if (aggregates != null) {
+                footprint.addStructure("aggregates", aggregates.getMemoryBytes());
+            }
+            if (counters != null) {
+                footprint.addStructure("ingest counters", counters.getMemoryBytes());
+            }
+            CoOccurrence matrix = coOccurrence;
+            if (matrix != null) {
+                footprint.addStructure("co-occurrence", matrix.getMemoryBytes());
+            }
+            for (Segment segment : segments.values()) {
+                footprint.addStructure("segment " + segment.getName(), segment.getMemoryBytes());
+            }
+            return footprint;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the stored users into the counters again, after a load that failed part way through. Must be called while
+     * holding the write lock.
+     */
+    private void recount() {
+        if (counters == null) {
+            return;
+        }
+        long[] visitors = new long[categories];
+        long[] views = new long[categories];
+        for (int user = 0; user < usersProcessed; user++) {
+            for (int category = 0; category < categories; category++) {
+                int count = msnbcData.getCategory(user, category);
+                if (count > 0) {
+                    visitors[category]++;
+                    views[category] += count;
+                }
+            }
+        }
+        counters.reset();
+        counters.add(usersProcessed, visitors, views);
+    }
+
+    /**
+     * Reads the totals counted so far without waiting for a load to finish. During a load they include users that
+     * have been parsed but not stored yet.
+     * @return the users, visitors and views counted so far, null for a dataset opened with openColumns
+     */
+    public IngestCounters.Snapshot liveCounts() {
+        return counters == null ? null : counters.snapshot();
+    }
+
+    /**
+     * Used to check on the progress of loading the file
+     * @return the amount of users who have been processed from the file so far
+     */
+    public int getUsersProcessed(){
+        return usersProcessed;
+    }
+
+    /**
+     * @return the total amount of users in the dataset
+     */
+    public int getTotalUsers(){
+        return totalUsers;
+    }
+
+    /**
+     * @return how many categories every user has a visit count for, the valid categories are 0 to this minus 1
+     */
+    public int getCategories(){
+        return categories;
+    }
+
+    /**
+     * Using multithreading, count the amount of users who have visited a given category at least once.
+     *
+     * @param category the category to consider
+     * @return the count of uses who have visited category.
+     */
+
+    private int countUsersByCategory(int category) throws InterruptedException {
+        return countUsersByCategory(1, category, null);
+    }
+
+    /**
+     * Using multithreading, count the amount of users who have visited a given category by atleast a given threshold.
+     *
+     * @param threshold how many visits to a category must be made for the user to be counted
+     * @param category the category to consider
+     * @param segment the users to count, null for every user
+     * @return the count of uses who have visited category.
+     */
+    private int countUsersByCategory(int threshold, int category, Segment segment) throws InterruptedException {
+        return scan(false, threshold, category, segment);
+    }
+
+    /**
+     * Using multithreading, count the amount of users who a visited a given category more than another category.
+     *
+     * @param category1 category to consider
+     * @param category2 category to check again
+     * @param segment the users to count, null for every user
+     * @return the amount of users who have visited category1 more than category2
      * @throws InterruptedException
      */
-    private int countUsersByComparison(int category1, int category2) throws  InterruptedException {
-        // dataSubsize is the size of each sublist. We use float division and round up to make sure we don't come up short.
+    private int countUsersByComparison(int category1, int category2, Segment segment) throws  InterruptedException {
+        return scan(true, category1, category2, segment);
+    }
+
+    /**
+     * @param segment the segment a scan covers, null for every user
+     * @return how long the range of a scan is: users, the segment's ids or the words of its bitmap
+     */
+    private int domainLength(Segment segment) {
+        if (segment == null) {
+            return msnbcData.getUsers();
+        }
+        return segment.isBitmap() ? segment.getBits().length : segment.size();
+    }
+
+    /**
+     * Runs a scan on a pooled ScanJob. The tasks are set up in place, the worker threads are woken and the calling
+     * thread runs tasks too until none are left, then parks until the last one finishes.
+     *
+     * A segment small enough that dispatching its tasks would cost more than scanning it is scanned on the calling
+     * thread alone.
+     *
+     * @param compare true to count users who visited arg1 more than arg2, false to count users who visited category
+     *                arg2 at least arg1 times
+     * @param segment the users to scan, null for every user
+     * @return the sum of the results of the tasks
+     * @throws InterruptedException if the thread was interrupted while waiting for a free ScanJob, or during the scan
+     *                              once the tasks are done
+     * @throws RuntimeException the first failure of a task, once the tasks are done
+     */
+    private int scan(boolean compare, int arg1, int arg2, Segment segment) throws InterruptedException {
+        ScanJob job = claimScanJob();
+        try {
+            int length = domainLength(segment);
+            if (segment != null && segment.size() <= QueryPlanner.SMALL_SEGMENT) {
+                if (compare) {
+                    job.compareTasks[0].reset(0, length, arg1, arg2, segment);
+                    job.compareTasks[0].run();
+                    return job.compareTasks[0].getResult();
+                }
+                job.countTasks[0].reset(0, length, arg2, arg1, segment);
+                job.countTasks[0].run();
+                return job.countTasks[0].getResult();
+            }
+            // dataSubsize is the size of each sublist. We use float division and round up to make sure we don't come up short.
+            int dataSubsize = (int) Math.ceil((double) length / (double) taskCount);
+            for (int i = 0; i < taskCount; i++) {
+                if (compare) {
+                    job.compareTasks[i].reset(i * dataSubsize, (i + 1) * dataSubsize, arg1, arg2, segment);
+                } else {
+                    job.countTasks[i].reset(i * dataSubsize, (i + 1) * dataSubsize, arg2, arg1, segment);
+                }
+            }
+            job.tasks = compare ? job.compareTasks : job.countTasks;
+            job.waiter = Thread.currentThread();
+            job.failure = null;
+            job.remaining.set(taskCount);
+            job.next.set(0); // opens the job to the workers
+            wakeWorkers();
+
+            while (job.runOne()) {
+                // help instead of waiting idle
+            }
+            boolean interrupted = false;
+            while (job.remaining.get() > 0) {
+                LockSupport.park(job);
+                interrupted |= Thread.interrupted(); // the workers still use the job, so wait for them anyway
+            }
+            if (job.failure != null) {
+                throw job.failure;
+            }
+
+            int sum = 0;
+            // sum the results of the tasks
+            for (int i = 0; i < taskCount; i++) {
+                sum += compare ? job.compareTasks[i].getResult() : job.countTasks[i].getResult();
+            }
+            if (interrupted) {
+                throw new InterruptedException();
+            }
+            return sum;
+        } finally {
+            job.inUse.set(false); // every task has finished, or none was handed out
+            freeScanJobs.release();
+        }
+    }
+
+    /**
+     * Waits until a ScanJob is free, blocking rather than spinning when more scans are running than there are jobs
+     * @return a ScanJob that no other query is using
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    private ScanJob claimScanJob() throws InterruptedException {
+        freeScanJobs.acquire(); // a permit is only released after its job is marked free, so one is free now
+        for (ScanJob job : scanJobs) {
+            if (!job.inUse.get() && job.inUse.compareAndSet(false, true)) {
+                return job;
+            }
+        }
+        throw new IllegalStateException("a permit without a free ScanJob");
+    }
+
+    /**
+     * Runs one task of any active scan job
+     * @return true if a task was run
+     */
+    private boolean runScanTask() {
+        for (ScanJob job : scanJobs) {
+            if (job.inUse.get() && job.runOne()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wakes every worker thread so they look for work
+     */
+    private void wakeWorkers() {
+        for (WorkerThread worker : threadPool) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Using multithreading, builds a distribution over every user in one pass. Each task counts into its own array.
+     *
+     * @param distribution which distribution to build
+     * @param category category to consider for CATEGORY_VISITS
+     * @param minLength the smallest length of the returned array
+     * @return the counts of every value, at least minLength long. null if interrupted
+     */
+    private int[] distribute(Distribution distribution, int category, int minLength) {
+        lock.readLock().lock();
+        try {
+            int dataSubsize = (int) Math.ceil((double) msnbcData.getUsers() / (double) taskCount);
+            DistributionTask[] tasks = new DistributionTask[taskCount];
+            CountDownLatch countLatch = new CountDownLatch(taskCount);
+            for (int i = 0; i < taskCount; i++) {
+                tasks[i] = new DistributionTask(i * dataSubsize, (i + 1) * dataSubsize, distribution, category,
+                        countLatch);
+                taskQueue.put(tasks[i]);
+            }
+            awaitPass(countLatch, tasks);
+            int length = minLength;
+            for (DistributionTask task : tasks) {
+                int[] counts = task.getResult();
+                for (int v = counts.length - 1; v >= length; v--) {
+                    if (counts[v] != 0) {
+                        length = v + 1;
+                        break;
+                    }
+                }
+            }
+            int[] sum = new int[length];
+            for (DistributionTask task : tasks) {
+                int[] counts = task.getResult();
+                for (int v = 0; v < Math.min(length, counts.length); v++) {
+                    sum[v] += counts[v];
+                }
+            }
+            return sum;
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The full distribution of visits to a category, in one pass.
+     * Relates to: How many users viewed X exactly n times, for every n?
+     *
+     * @param category the category to consider
+     * @return users by how many times they visited category, index n holds the users with exactly n visits. null if
+     * interrupted
+     */
+    public int[] visitDistribution(int category) {
+        return distribute(Distribution.CATEGORY_VISITS, category, 1);
+    }
+
+    /**
+     * The distribution of the total amount of pages each user viewed, in one pass.
+     *
+     * @return users by total views, index n holds the users who viewed exactly n pages. null if interrupted
+     */
+    public int[] totalViewsDistribution() {
+        return distribute(Distribution.TOTAL_VIEWS, 0, 1);
+    }
+
+    /**
+     * The distribution of how many different categories each user visited, in one pass.
+     *
+     * @return users by distinct categories, index n holds the users who visited exactly n categories. null if
+     * interrupted
+     */
+    public int[] distinctCategoriesDistribution() {
+        return distribute(Distribution.DISTINCT_CATEGORIES, 0, categories + 1);
+    }
+
+    /**
+     * Users grouped by their most visited category and by how many different categories they visited, in one pass.
+     * Ties for the most visited category go to the lowest category. Users without any visits are left out.
+     *
+     * @return counts where [top][n] holds the users whose most visited category is top and who visited exactly n
+     * categories. null if interrupted
+     */
+    public int[][] distinctCategoriesByTopCategory() {
+        int[] flat = distribute(Distribution.DISTINCT_BY_TOP_CATEGORY, 0, categories * (categories + 1));
+        if (flat == null) {
+            return null;
+        }
+        int[][] grouped = new int[categories][];
+        for (int top = 0; top < categories; top++) {
+            grouped[top] = Arrays.copyOfRange(flat, top * (categories + 1), (top + 1) * (categories + 1));
+        }
+        return grouped;
+    }
+
+    /**
+     * The nearest-rank quantile of a distribution: the smallest value that at least q of the users are at or below
+     * @param counts users by value, index v holds the users with value v
+     * @param q the quantile, from 0 to 1
+     * @return the quantile, -1 if there are no users
+     */
+    private static int quantile(int[] counts, double q) {
+        long users = 0;
+        for (int count : counts) {
+            users += count;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * users));
+        long seen = 0;
+        for (int v = 0; v < counts.length; v++) {
+            seen += counts[v];
+            if (seen >= rank) {
+                return v;
+            }
+        }
+        return -1;
+    }
+
+    private static void checkQuantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile " + q + " is not between 0 and 1");
+        }
+    }
+
+    /**
+     * The exact quantile of the visits users made to a category, users who never visited it included. It is read from
+     * the histograms of the aggregates, or counted with one multithreaded pass if they aren't maintained.
+     * Relates to: What is the median (q = 0.5) or 99th percentile (q = 0.99) number of visits to X?
+     *
+     * @param category the category to consider
+     * @param q the quantile, from 0 to 1
+     * @return the smallest visit count that at least q of the users are at or below, -1 if interrupted or empty
+     */
+    public int visitQuantile(int category, double q) {
+        checkQuantile(q);
+        int[] counts;
+        lock.readLock().lock();
+        try {
+            counts = aggregates != null ? aggregates.getHistogram(category) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (counts == null) {
+            counts = visitDistribution(category);
+        }
+        return counts == null ? -1 : quantile(counts, q);
+    }
+
+    /**
+     * The exact quantile of the total pages each user viewed, counted with one multithreaded pass.
+     *
+     * @param q the quantile, from 0 to 1
+     * @return the smallest total that at least q of the users are at or below, -1 if interrupted or empty
+     */
+    public int totalViewsQuantile(double q) {
+        checkQuantile(q);
+        int[] counts = totalViewsDistribution();
+        return counts == null ? -1 : quantile(counts, q);
+    }
+
+    /**
+     * The quantile of the visits users made to a category, within 1% and in constant time, from the sketch kept up to
+     * date as users are stored.
+     *
+     * @param category the category to consider
+     * @param q the quantile, from 0 to 1
+     * @return the quantile rounded to an integer, exact below 50. -1 if empty or opened with openColumns
+     */
+    public long approximateVisitQuantile(int category, double q) {
+        return sketchQuantile(category, q);
+    }
+
+    /**
+     * The quantile of the total pages each user viewed, within 1% and in constant time, from the sketch kept up to
+     * date as users are stored.
+     *
+     * @param q the quantile, from 0 to 1
+     * @return the quantile rounded to an integer, exact below 50. -1 if empty or opened with openColumns
+     */
+    public long approximateTotalViewsQuantile(double q) {
+        return sketchQuantile(categories, q);
+    }
+
+    private long sketchQuantile(int sketch, double q) {
+        checkQuantile(q);
+        lock.readLock().lock();
+        try {
+            return sketches == null ? -1 : sketch(sketch).quantile(q);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A sketch over every user, the sketches only hold loaded users so the empty ones are added as zeros. Must be
+     * called while holding the read lock.
+     */
+    private QuantileSketch sketch(int sketch) {
+        int empty = msnbcData.getUsers() - usersProcessed;
+        if (empty == 0) {
+            return sketches[sketch];
+        }
+        QuantileSketch all = sketches[sketch].copy();
+        all.add(0, empty);
+        return all;
+    }
+
+    /**
+     * @return an empty sketch for the visits to every category and one for the total views per user
+     */
+    private static QuantileSketch[] newSketches(int categories) {
+        QuantileSketch[] sketches = new QuantileSketch[categories + 1];
+        for (int i = 0; i <= categories; i++) {
+            sketches[i] = new QuantileSketch();
+        }
+        return sketches;
+    }
+
+    /**
+     * A copy of the sketch of the visits to a category, to merge with the sketches of other datasets
+     * @param category the category to consider, or the number of categories for the total views per user
+     * @return the copy, null for a dataset opened with openColumns
+     */
+    public QuantileSketch getSketch(int category) {
+        lock.readLock().lock();
+        try {
+            return sketches == null ? null : sketch(category).copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the co-occurrence matrix of every pair of categories, building it with one multithreaded pass the first
+     * time it is needed after data was loaded. The counts of every task are added together once all are done.
+     *
+     * @return the co-occurrence matrix, null if interrupted
+     */
+    public CoOccurrence coOccurrence() {
+        lock.readLock().lock();
+        try {
+            CoOccurrence matrix = coOccurrence;
+            if (matrix != null) {
+                return matrix;
+            }
+            synchronized (this) { // only one query builds it, the others wait for the result
+                if (coOccurrence == null) {
+                    coOccurrence = buildCoOccurrence();
+                }
+                return coOccurrence;
+            }
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private CoOccurrence buildCoOccurrence() throws InterruptedException {
         int dataSubsize = (int) Math.ceil((double) msnbcData.getUsers() / (double) taskCount);
-        CompareTask[] tasks = new CompareTask[taskCount]; // array of created tasks
-        CountDownLatch countLatch = new CountDownLatch(taskCount); // lets us block until all tasks finish.
-        // create the tasks and place them in the pool of tasks
+        CoOccurrenceTask[] tasks = new CoOccurrenceTask[taskCount];
+        CountDownLatch countLatch = new CountDownLatch(taskCount);
         for (int i = 0; i < taskCount; i++) {
-            CompareTask newTask = new CompareTask(i * dataSubsize, (i + 1) * dataSubsize, category1, category2, countLatch);
-            tasks[i] = newTask;
-            taskQueue.put(newTask);
+            tasks[i] = new CoOccurrenceTask(i * dataSubsize, (i + 1) * dataSubsize, countLatch);
+            taskQueue.put(tasks[i]);
+        }
+        awaitPass(countLatch, tasks);
+        int[][] joint = new int[categories][categories];
+        for (CoOccurrenceTask task : tasks) {
+            int[] counts = task.getResult();
+            for (int a = 0; a < categories; a++) {
+                for (int b = a; b < categories; b++) {
+                    joint[a][b] += counts[a * categories + b];
+                }
+            }
+        }
+        for (int a = 0; a < categories; a++) {
+            for (int b = 0; b < a; b++) {
+                joint[a][b] = joint[b][a];
+            }
+        }
+        return new CoOccurrence(joint, msnbcData.getUsers());
+    }
+
+    /**
+     * Query to count the users who visited both categories, answered from the co-occurrence matrix.
+     * Relates to: How many users looked at both X and Y?
+     *
+     * @param category1 first category
+     * @param category2 second category
+     * @return number of users who visited both categories, -1 if interrupted
+     */
+    public int coOccurrenceQuery(int category1, int category2) {
+        CoOccurrence matrix = coOccurrence();
+        return matrix == null ? -1 : matrix.jointVisitors(category1, category2);
+    }
+
+    /**
+     * Plans and runs a query while holding the read lock
+     * @param plan the plan to fill in with the chosen path, the result and the time
+     * @param segment the name of the segment to limit the query to, null for every user
+     * @param type the query to run
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @return plan
+     * @throws IllegalArgumentException if the segment isn't defined or a category argument is out of range
+     */
+    private QueryPlanner.Plan execute(QueryPlanner.Plan plan, String segment, QueryType type, int arg1, int arg2) {
+        type.checkCategories(arg1, arg2, categories); // every path indexes by category without checking
+        long start;
+        long nanos;
+        double result;
+        lock.readLock().lock();
+        try {
+            if (segment == null) {
+                planner.plan(plan, type, arg1, arg2, msnbcData.getUsers());
+            } else {
+                planner.plan(plan, type, arg1, arg2, currentSegment(segment));
+            }
+            start = System.nanoTime();
+            try {
+                result = answer(plan, type, arg1, arg2);
+            } catch (InterruptedException e) {
+                result = type == QueryType.COUNT || type == QueryType.COMPARISON ? 0 : -1; // false or -1
+            }
+            nanos = System.nanoTime() - start;
+            planner.finish(plan, result, nanos);
+        } finally {
+            lock.readLock().unlock();
+        }
+        QueryLog log = queryLog;
+        if (log != null && segment == null) { // the log has no segments, replaying it would answer another query
+            log.record(type, arg1, arg2, start, nanos, result); // after unlocking, a slow write never holds up a load
+        }
+        return plan;
+    }
+
+    /**
+     * Plans and runs a query on the calling thread's reusable plan, so that answering it allocates nothing
+     * @return the result as a number, 1 or 0 for true or false
+     */
+    private double execute(QueryType type, int arg1, int arg2) {
+        return execute(plans.get(), null, type, arg1, arg2).getValue();
+    }
+
+    /**
+     * Plans and runs a query limited to a segment on the calling thread's reusable plan
+     * @return the result as a number, 1 or 0 for true or false
+     */
+    private double execute(String segment, QueryType type, int arg1, int arg2) {
+        return execute(plans.get(), segment, type, arg1, arg2).getValue();
+    }
+
+    /**
+     * Answers a query using the path chosen by the planner
+     * @return the result as a number, 1 or 0 for true or false
+     */
+    private double answer(QueryPlanner.Plan plan, QueryType type, int arg1, int arg2) throws InterruptedException {
+        Segment segment = plan.getSegment();
+        int users = segment == null ? msnbcData.getUsers() : segment.size(); // what percentages are of
+        switch (type) {
+            case COUNT:
+                return usersAtLeast(plan, 1, arg2) > arg1 ? 1 : 0;
+            case PERCENTAGE:
+                return users == 0 ? 0 : ((float) usersAtLeast(plan, 1, arg1) / (float) users) * 100;
+            case COMPARISON:
+                return usersAtLeast(plan, 1, arg1) > usersAtLeast(plan, 1, arg2) ? 1 : 0;
+            case THRESHOLD:
+                return usersAtLeast(plan, arg1, arg2);
+            case COMPARE_COUNT:
+                return usersGreater(plan, arg1, arg2);
+            default:
+                return users == 0 ? 0 : (float) usersGreater(plan, arg1, arg2) * 100 / (float) users;
         }
-        countLatch.await(); // waits for all tasks to finish
-        int sum = 0;
-        // sum the results of the tasks
-        for (CompareTask task : tasks) {
-            sum += task.getResult();
+    }
+
+    /**
+     * Counts the users who visited category1 more than category2 using the planned path
+     */
+    private int usersGreater(QueryPlanner.Plan plan, int category1, int category2) throws InterruptedException {
+        if (plan.getPath() == QueryPlanner.Path.COUNTER) {
+            return aggregates.countGreater(category1, category2);
+        }
+        return countUsersByComparison(category1, category2, plan.getSegment());
+    }
+
+    /**
+     * Counts the users who visited a category at least threshold times using the planned path
+     */
+    private int usersAtLeast(QueryPlanner.Plan plan, int threshold, int category) throws InterruptedException {
+        switch (plan.getPath()) {
+            case COUNTER:
+                return (int) counters.getVisitors(category);
+            case HISTOGRAM:
+                return aggregates.countAtLeast(threshold, category);
+            default:
+                return countUsersByCategory(threshold, category, plan.getSegment());
         }
-        return sum;
     }
 
     /**
-     * Multithreaded query to tell if more than userThreshold users visited category.
+     * Starts or stops recording every query to a log, to capture a workload for WorkloadReplay. Only the six queries
+     * of QueryType over every user are recorded: segment queries, distributions, quantiles and co-occurrence aren't.
+     * @param log the log to record to, null to stop recording. The caller closes it.
+     */
+    public void setQueryLog(QueryLog log) {
+        queryLog = log;
+    }
+
+    /**
+     * Runs a query and explains how it was answered: the chosen path, the paths that were rejected, and the estimated
+     * and actual cost.
+     * @param type the query to run
+     * @param arg1 first argument of the query, as in the query's method
+     * @param arg2 second argument of the query, ignored by PERCENTAGE
+     * @return the plan, whose toString is the explain output
+     */
+    public QueryPlanner.Plan explain(QueryType type, int arg1, int arg2) {
+        return execute(new QueryPlanner.Plan(), null, type, arg1, arg2);
+    }
+
+    /**
+     * Runs a query limited to a segment and explains how it was answered
+     * @param segment the name of a segment made with defineSegment
+     * @param type the query to run
+     * @param arg1 first argument of the query, as in the query's method
+     * @param arg2 second argument of the query, ignored by PERCENTAGE
+     * @return the plan, whose toString is the explain output
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public QueryPlanner.Plan explain(String segment, QueryType type, int arg1, int arg2) {
+        return execute(new QueryPlanner.Plan(), segment, type, arg1, arg2);
+    }
+
+    /**
+     * Query to tell if more than userThreshold users visited category.
      * Relates to: Are there more than ____ users who looked at X?
      *
      * @param userThreshold how many users must have visited category
@@ -349,15 +1672,11 @@ public class Data {
      */
 
     public boolean countQuery(int userThreshold, int category) {
-        try {
-            return countUsersByCategory(category) > userThreshold;
-        } catch (InterruptedException e) {
-            return false;
-        }
+        return execute(QueryType.COUNT, userThreshold, category) != 0;
     }
 
     /**
-     * Multithreaded query to calculate the percentage of users who visited a category.
+     * Query to calculate the percentage of users who visited a category.
      * Relates to: What percent of users looked at X?
      *
      * @param category the category to consider
@@ -365,15 +1684,11 @@ public class Data {
      */
 
     public float percentageCountQuery(int category) {
-        try {
-            return ((float)countUsersByCategory(category) / (float)msnbcData.getUsers())*100;
-        } catch (InterruptedException e) {
-            return -1;
-        }
+        return (float) execute(QueryType.PERCENTAGE, category, 0);
     }
 
     /**
-     * Multithreaded query to calculate if more users looked at category1 than category 2.
+     * Query to calculate if more users looked at category1 than category 2.
      * Relates to: Are there more users who looked at X than Y?
      *
      * @param category1 first category
@@ -381,16 +1696,11 @@ public class Data {
      * @return true if more users visited category1 than category2
      */
     public boolean comparisonQuery(int category1, int category2){
-        try{
-            return countUsersByCategory(category1) > countUsersByCategory(category2);
-        }
-        catch (InterruptedException e){
-            return false;
-        }
+        return execute(QueryType.COMPARISON, category1, category2) != 0;
     }
 
     /**
-     * Multithreaded query to calculate the amount of users who have visited a category at least a certain amount of times.
+     * Query to calculate the amount of users who have visited a category at least a certain amount of times.
      * Relates to: How many users viewed X ___ (or more) number of times?
      *
      * @param threshold how many visits to a category a user must have made to be counted
@@ -398,16 +1708,11 @@ public class Data {
      * @return number of users who visited category at least threshold times
      */
     public int countThresholdQuery(int threshold, int category){
-        try {
-            return countUsersByCategory(threshold, category);
-        }
-        catch (InterruptedException e){
-            return -1;
-        }
+        return (int) execute(QueryType.THRESHOLD, threshold, category);
     }
 
     /**
-     * Multithreaded query to calculate the percent of users that viewed one category more than another category.
+     * Query to calculate the percent of users that viewed one category more than another category.
      * Relates to: What percent of users looked at X more than Y?
      *
      * @param category1 the first category to consider
@@ -415,11 +1720,267 @@ public class Data {
      * @return percentage of users who visited which category more.
     */
     public float comparePercentageQuery(int category1, int category2){
+        return (float) execute(QueryType.COMPARE_PERCENTAGE, category1, category2);
+    }
+
+    /**
+     * Query to count the users that viewed one category more than another category.
+     * Relates to: How many users looked at X more than Y?
+     *
+     * @param category1 the first category to consider
+     * @param category2 the second category to consider
+     * @return number of users who visited category1 more than category2, -1 if error.
+     */
+    public int compareCountQuery(int category1, int category2){
+        return (int) execute(QueryType.COMPARE_COUNT, category1, category2);
+    }
+
+    /**
+     * Defines a named segment, the users who visited a category at least minViews times, and finds its members with
+     * one multithreaded pass. A segment with the same name is replaced. The segment is found again the next time it is
+     * used after more data was loaded.
+     *
+     * @param name the name to query the segment by
+     * @param category the category the members visited
+     * @param minViews how many times they visited it at least
+     * @return the segment, null if interrupted
+     * @throws IllegalArgumentException if category isn't between 0 and getCategories() - 1 or minViews is negative
+     */
+    public Segment defineSegment(String name, int category, int minViews) {
+        if (category < 0 || category >= categories) {
+            throw new IllegalArgumentException("category " + category + " is out of range 0-" + (categories - 1));
+        }
+        if (minViews < 0) {
+            throw new IllegalArgumentException("minViews " + minViews + " is negative");
+        }
+        lock.readLock().lock();
         try {
-            return (float)countUsersByComparison(category1, category2) * 100 /(float)msnbcData.getUsers();
-        } catch (InterruptedException e){
-            return -1;
+            Segment segment = buildSegment(name, category, minViews);
+            segments.put(name, segment);
+            return segment;
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
         }
     }
-}
 
+    /**
+     * @param name the name of a segment
+     * @return the segment, null if it isn't defined
+     */
+    public Segment getSegment(String name) {
+        lock.readLock().lock();
+        try {
+            return segments.containsKey(name) ? currentSegment(name) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets a segment and frees its members
+     * @param name the name of the segment
+     */
+    public void dropSegment(String name) {
+        segments.remove(name);
+    }
+
+    /**
+     * Gets a segment, finding its members again if users were loaded since it was built. Must be called while holding
+     * the read lock.
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    private Segment currentSegment(String name) {
+        Segment segment = segments.get(name);
+        if (segment == null) {
+            throw new IllegalArgumentException("no segment named " + name);
+        }
+        if (segment.getBuiltFor() == usersProcessed) {
+            return segment;
+        }
+        synchronized (segment) { // only one query rebuilds it, the others wait for the result
+            Segment current = segments.get(name);
+            if (current != null && current.getBuiltFor() == usersProcessed) {
+                return current;
+            }
+            try {
+                current = buildSegment(name, segment.getCategory(), segment.getMinViews());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return segment; // out of date, but the query can still run
+            }
+            segments.put(name, current);
+            return current;
+        }
+    }
+
+    private Segment buildSegment(String name, int category, int minViews) throws InterruptedException {
+        int builtFor = usersProcessed;
+        int dataSubsize = (int) Math.ceil((double) msnbcData.getUsers() / (double) taskCount);
+        SegmentTask[] tasks = new SegmentTask[taskCount];
+        CountDownLatch segmentLatch = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            tasks[i] = new SegmentTask(i * dataSubsize, (i + 1) * dataSubsize, category, minViews, segmentLatch);
+            taskQueue.put(tasks[i]);
+        }
+        awaitPass(segmentLatch, tasks);
+        int size = 0;
+        for (SegmentTask task : tasks) {
+            size += task.size;
+        }
+        int[] members = new int[size];
+        int offset = 0;
+        for (SegmentTask task : tasks) { // the tasks cover the users in order, so the ids stay sorted
+            System.arraycopy(task.members, 0, members, offset, task.size);
+            offset += task.size;
+        }
+        return new Segment(name, category, minViews, members, size, msnbcData.getUsers(), builtFor);
+    }
+
+    /**
+     * countQuery limited to the users of a segment
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public boolean countQuery(String segment, int userThreshold, int category) {
+        return execute(segment, QueryType.COUNT, userThreshold, category) != 0;
+    }
+
+    /**
+     * percentageCountQuery limited to the users of a segment, the result is a percent of the segment, 0 if the
+     * segment is empty
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public float percentageCountQuery(String segment, int category) {
+        return (float) execute(segment, QueryType.PERCENTAGE, category, 0);
+    }
+
+    /**
+     * comparisonQuery limited to the users of a segment
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public boolean comparisonQuery(String segment, int category1, int category2) {
+        return execute(segment, QueryType.COMPARISON, category1, category2) != 0;
+    }
+
+    /**
+     * countThresholdQuery limited to the users of a segment
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public int countThresholdQuery(String segment, int threshold, int category) {
+        return (int) execute(segment, QueryType.THRESHOLD, threshold, category);
+    }
+
+    /**
+     * comparePercentageQuery limited to the users of a segment, the result is a percent of the segment, 0 if the
+     * segment is empty
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public float comparePercentageQuery(String segment, int category1, int category2) {
+        return (float) execute(segment, QueryType.COMPARE_PERCENTAGE, category1, category2);
+    }
+
+    /**
+     * compareCountQuery limited to the users of a segment
+     * @throws IllegalArgumentException if the segment isn't defined
+     */
+    public int compareCountQuery(String segment, int category1, int category2) {
+        return (int) execute(segment, QueryType.COMPARE_COUNT, category1, category2);
+    }
+
+    /**
+     * Runs a query on the query threads
+     * @param query the query to run
+     * @return a future of the query's result. If it is cancelled before the query starts the query is skipped.
+     */
+    private <T> CompletableFuture<T> async(Supplier<T> query) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        queryThreads.execute(() -> {
+            if (future.isDone()) {
+                return; // cancelled while it was queued
+            }
+            try {
+                future.complete(query.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs comparePercentageQuery and comparisonQuery of the same two categories as one async query, so that
+     * cancelling its single future skips both. If it is cancelled after the first query, the second is skipped.
+     * @param category1 the first category to consider
+     * @param category2 the second category to consider
+     * @param combine turns the percentage and the comparison into the result
+     * @return a future of the combined result
+     */
+    public <T> CompletableFuture<T> compareAsync(int category1, int category2, BiFunction<Float, Boolean, T> combine) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        queryThreads.execute(() -> {
+            if (future.isDone()) {
+                return; // cancelled while it was queued
+            }
+            try {
+                float percentage = comparePercentageQuery(category1, category2);
+                if (future.isDone()) {
+                    return; // cancelled while the first query ran
+                }
+                future.complete(combine.apply(percentage, comparisonQuery(category1, category2)));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Async version of countQuery
+     * @param userThreshold how many users must have visited category
+     * @param category the category to consider
+     * @return a future of the result of countQuery
+     */
+    public CompletableFuture<Boolean> countQueryAsync(int userThreshold, int category) {
+        return async(() -> countQuery(userThreshold, category));
+    }
+
+    /**
+     * Async version of percentageCountQuery
+     * @param category the category to consider
+     * @return a future of the result of percentageCountQuery
+     */
+    public CompletableFuture<Float> percentageCountQueryAsync(int category) {
+        return async(() -> percentageCountQuery(category));
+    }
+
+    /**
+     * Async version of comparisonQuery
+     * @param category1 first category
+     * @param category2 second category
+     * @return a future of the result of comparisonQuery
+     */
+    public CompletableFuture<Boolean> comparisonQueryAsync(int category1, int category2) {
+        return async(() -> comparisonQuery(category1, category2));
+    }
+
+    /**
+     * Async version of countThresholdQuery
+     * @param threshold how many visits to a category a user must have made to be counted
+     * @param category category to consider
+     * @return a future of the result of countThresholdQuery
+     */
+    public CompletableFuture<Integer> countThresholdQueryAsync(int threshold, int category) {
+        return async(() -> countThresholdQuery(threshold, category));
+    }
+
+    /**
+     * Async version of comparePercentageQuery
+     * @param category1 the first category to consider
+     * @param category2 the second category to consider
+     * @return a future of the result of comparePercentageQuery
+     */
+    public CompletableFuture<Float> comparePercentageQueryAsync(int category1, int category2) {
+        return async(() -> comparePercentageQuery(category1, category2));
+    }
+}
@@ -4,13 +4,42 @@
 public class DataArray{
 
     private int[][] theArray;
+    private int rows; // rows in use, theArray may have spare capacity after an append
+    private int cols;
 
     /**
      * Creates a new DataArray with the given amount of rows and columns
      * @param rows how many rows or users in the dataset
      * @param cols how many columns or categories are in the dataset
      */
-    public DataArray(int rows, int cols){theArray = new int[rows][cols];}
+    public DataArray(int rows, int cols){
+        theArray = new int[rows][cols];
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Lets subclasses store the dataset in another layout, they override every method
+     */
+    protected DataArray(){}
+
+    /**
+     * Adds empty rows to the end of the array. Storage grows by doubling so that appending one user at a time stays
+     * cheap.
+     * @param count how many rows to add
+     */
+    public void addUsers(int count){
+        int needed = rows + count;
+        if (needed > theArray.length) {
+            int[][] bigger = new int[Math.max(needed, theArray.length * 2)][];
+            System.arraycopy(theArray, 0, bigger, 0, rows);
+            theArray = bigger;
+        }
+        for (int i = rows; i < needed; i++) {
+            theArray[i] = new int[cols];
+        }
+        rows = needed;
+    }
 
     /**
      * Sets the count of the category to a given value for a given user
@@ -28,16 +57,38 @@ public class DataArray{
      */
     public int getCategory(int user, int category){return theArray[user][category];}
 
+    /**
+     * Gets every user's count of a category as one array, for layouts that store a column per category. A pass that
+     * reads many cells of a category should fetch the column once and keep it for the whole pass.
+     * @param category category to get
+     * @return the counts of category indexed by user, not to be changed. null unless isColumnar()
+     */
+    public int[] getColumn(int category){return null;}
+
+    /**
+     * Tells whether getColumn returns columns, without fetching one
+     * @return true if the layout stores a column per category
+     */
+    public boolean isColumnar(){return false;}
+
+    /**
+     * @return roughly how many bytes of heap the stored cells take, see MemoryFootprint
+     */
+    public long getMemoryBytes() {
+        long bytes = MemoryFootprint.array(theArray.length, MemoryFootprint.REFERENCE);
+        return bytes + rows * MemoryFootprint.array(cols, 4);
+    }
+
     /**
      * @return The amount of users stored
      */
 
-    public int getUsers() {return theArray.length;}
+    public int getUsers() {return rows;}
 
     /**
      * @return The amount of categories stored
      */
 
-    public  int getCategories() {return theArray[0].length;}
+    public  int getCategories() {return cols;}
 }
 
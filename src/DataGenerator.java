@@ -0,0 +1,167 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Command line tool that writes synthetic session files in the MSNBC format (one user per line, space separated
+ * categories from 1 to 17) so that loading and the queries can be tested at any size.
+ *
+ * Sessions are shaped like the real data: about 40% of users view a single page, the mean session is about 5.7 pages
+ * with a long tail, users tend to stay in the category they are reading, and categories are picked by their
+ * popularity in the real file (front page and news far ahead, travel and bbs far behind).
+ *
+ * Users are generated in blocks, each with its own random generator derived from the seed and the block number, so
+ * the output only depends on the seed and the user count and not on how many threads wrote it.
+ *
+ * Usage: java DataGenerator file users [seed] [threads]
+ * A file name ending in .gz is gzip compressed.
+ *
+ * @author Robert Bofinger, Preston Mackert
+ *
+ */
+
+public class DataGenerator {
+
+    private static final int CATEGORIES = 17;
+    private static final int BLOCK_USERS = 1 << 16; // users generated by one task
+
+    // approximate share of page views of each category in the real data, in file order
+    private static final double[] POPULARITY = {
+            0.199, 0.101, 0.058, 0.110, 0.061, 0.114, 0.025, 0.060, 0.054,
+            0.013, 0.018, 0.014, 0.032, 0.052, 0.056, 0.003, 0.010};
+
+    private static final double SINGLE_PAGE = 0.40;  // share of users who only view one page
+    private static final double STAY = 0.55;         // chance the next page is in the same category
+    private static final double MORE_PAGES = 1 - 1 / 7.8; // continuation chance after the second page
+
+    private final double[] cumulative = new double[CATEGORIES];
+
+    /**
+     * Creates a generator with the real data's category popularity
+     */
+    public DataGenerator() {
+        double total = 0;
+        for (double share : POPULARITY) {
+            total += share;
+        }
+        double sum = 0;
+        for (int c = 0; c < CATEGORIES; c++) {
+            sum += POPULARITY[c] / total;
+            cumulative[c] = sum;
+        }
+        cumulative[CATEGORIES - 1] = 1;
+    }
+
+    /**
+     * Writes users to a stream
+     * @param out where to write the session lines
+     * @param users how many users to write
+     * @param seed seed of the random generators
+     * @param threads how many threads generate blocks of users
+     * @throws IOException
+     */
+    public void generate(OutputStream out, long users, long seed, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(); // blocks in the order they are written
+        long blocks = (users + BLOCK_USERS - 1) / BLOCK_USERS;
+        try {
+            for (long block = 0; block < blocks; block++) {
+                final long index = block;
+                final int count = (int) Math.min(BLOCK_USERS, users - block * BLOCK_USERS);
+                pending.add(pool.submit(() -> generateBlock(seed, index, count)));
+                if (pending.size() >= threads * 2) {
+                    out.write(pending.remove().get()); // keeps memory bounded when the disk is the bottleneck
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(pending.remove().get());
+            }
+        } catch (Exception e) {
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        out.flush();
+    }
+
+    /**
+     * Generates the lines of one block of users
+     * @param seed seed of the whole file
+     * @param block which block to generate
+     * @param users how many users are in the block
+     * @return the bytes of the block
+     */
+    private byte[] generateBlock(long seed, long block, int users) {
+        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + block);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(users * 16);
+        for (int user = 0; user < users; user++) {
+            int length = 1;
+            if (random.nextDouble() >= SINGLE_PAGE) {
+                length = 2;
+                while (random.nextDouble() < MORE_PAGES) {
+                    length++;
+                }
+            }
+            int category = pick(random);
+            for (int page = 0; page < length; page++) {
+                if (page > 0) {
+                    bytes.write(' ');
+                    if (random.nextDouble() >= STAY) {
+                        category = pick(random);
+                    }
+                }
+                int number = category + 1;
+                if (number >= 10) {
+                    bytes.write('0' + number / 10);
+                }
+                bytes.write('0' + number % 10);
+            }
+            bytes.write('\n');
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param random generator of the current block
+     * @return a category picked by its popularity
+     */
+    private int pick(SplittableRandom random) {
+        double r = random.nextDouble();
+        int c = 0;
+        while (cumulative[c] < r) {
+            c++;
+        }
+        return c;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java DataGenerator file users [seed] [threads]");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        long users = Long.parseLong(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+        if (file.getName().endsWith(".gz")) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        try {
+            new DataGenerator().generate(out, users, seed, threads);
+        } finally {
+            out.close();
+        }
+        System.err.printf("wrote %d users to %s in %.1f s%n", users, file, (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -17,6 +17,7 @@
 
 import javafx.animation.FadeTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.*;
@@ -33,6 +34,11 @@ import javafx.stage.*;
 import javafx.util.Duration;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class GUI extends Application {
 
@@ -47,6 +53,9 @@ public class GUI extends Application {
     private static Data data;                 // the loaded msnbc data
     private static final int users = 989818;  // the total amount of users in the file
     private static final int categories = 17; // the total amount of categories
+    private static final int LOAD_ERROR_BUDGET = 1000; // bad lines to skip before giving up on the file
+    private static volatile LoadReport loadReport;   // what the load read and skipped
+    private static volatile Exception loadError;     // why the load failed, null if it didn't
 
     // these are the images used for the loading screen and then also the app icon
 
@@ -65,6 +74,10 @@ public class GUI extends Application {
     private static final int SPLASH_WIDTH = 600;
     private static final int SPLASH_HEIGHT = 400;
 
+    // the query running for each result label and what it was asked, only touched on the FX thread
+    private final Map<Label, CompletableFuture<?>> pendingQueries = new HashMap<>();
+    private final Map<Label, String> pendingKeys = new HashMap<>();
+
     // ---------------------------------------- run application ----------------------------------------------------- //
 
     public static void main(String[] args) throws Exception {launch(args);}  // this is what launches the app itself
@@ -123,6 +136,50 @@ public class GUI extends Application {
         initStage.show();
     }
 
+    private <T> void runQuery(Label resultText, ProgressIndicator busy, String key,
+                              Supplier<CompletableFuture<T>> query, Consumer<T> show) {
+        /**
+         * runs a query off of the FX thread so the window doesn't freeze during a scan. A click that asks the same
+         * question as the query still running is ignored, and a different question replaces the running query,
+         * whose result is thrown away. The result is shown back on the FX thread.
+         */
+        CompletableFuture<?> previous = pendingQueries.get(resultText);
+        if (previous != null && !previous.isDone()) {
+            if (key.equals(pendingKeys.get(resultText))) {
+                return;                                                  // same question, already being answered
+            }
+            previous.cancel(false);                                      // superseded, skipped if not started yet
+        }
+        CompletableFuture<T> future = query.get();
+        pendingQueries.put(resultText, future);
+        pendingKeys.put(resultText, key);
+        busy.setVisible(true);
+        resultText.setText("working . . .");
+        future.whenComplete((result, error) -> Platform.runLater(() -> {
+            if (pendingQueries.get(resultText) != future) {
+                return;                                                  // a newer query owns the label
+            }
+            pendingQueries.remove(resultText);
+            pendingKeys.remove(resultText);
+            busy.setVisible(false);
+            if (error != null) {
+                resultText.setText("the query could not be answered");
+            } else {
+                show.accept(result);
+            }
+        }));
+    }
+
+    private ProgressIndicator newBusyIndicator() {
+        /**
+         * makes the small spinner that is shown while a query runs
+         */
+        ProgressIndicator busy = new ProgressIndicator();
+        busy.setMaxSize(30, 30);
+        busy.setVisible(false);
+        return busy;
+    }
+
     private void showMainStage() {
         /**
          * The load screen is complete and now inside the main application with the data all loaded into our
@@ -185,6 +242,14 @@ public class GUI extends Application {
         layout1.getChildren().addAll(logo, select);
         layout1.setAlignment(Pos.CENTER);
 
+        LoadReport report = loadReport;
+        if (report != null && report.getSkipped() > 0) {               // stays up until a query is picked
+            Label skipped = new Label("skipped " + report.getSkipped() + " bad lines of the data file, first "
+                    + report.getErrors().get(0));
+            skipped.setWrapText(true);
+            layout1.getChildren().add(skipped);
+        }
+
         scene1 = new Scene(layout1, 900, 600);
 
         // ----------------- query1 screen ----------------- //
@@ -227,6 +292,7 @@ public class GUI extends Application {
         Label instruct = new Label("Type in a number of views and then select a category to answer the query");
 
         Label resultText = new Label();                                      // stores the answer for query 1
+        ProgressIndicator busy1 = newBusyIndicator();
 
         Button returnMain1 = new Button("return");
         returnMain1.setOnAction(e -> {mainStage.setScene(scene1);});
@@ -251,12 +317,16 @@ public class GUI extends Application {
             }
 
             if (col >= 0){                                                 // if valid category
-                boolean answerQ = data.countQuery(numberViews, col);       // compares views vs threshold
-                if (answerQ){
-                    resultText.setText("There were more than " + numberViews + " users who looked at " + cat);
-                } else {
-                    resultText.setText("There were fewer than " + numberViews + " users who looked at " + cat);
-                }
+                final int queryCol = col;
+                final int queryViews = numberViews;
+                runQuery(resultText, busy1, queryCol + " " + queryViews,  // compares views vs threshold
+                        () -> data.countQueryAsync(queryViews, queryCol), answerQ -> {
+                    if (answerQ){
+                        resultText.setText("There were more than " + queryViews + " users who looked at " + cat);
+                    } else {
+                        resultText.setText("There were fewer than " + queryViews + " users who looked at " + cat);
+                    }
+                });
             } else {
                 resultText.setText("The category selected was not registered");
             }
@@ -271,7 +341,7 @@ public class GUI extends Application {
         buttons.setAlignment(Pos.CENTER);
 
         VBox layout2 = new VBox(70);
-        layout2.getChildren().addAll(instruct, inputs, resultText, buttons);
+        layout2.getChildren().addAll(instruct, inputs, resultText, busy1, buttons);
         layout2.setAlignment(Pos.CENTER);
 
         scene2 = new Scene(layout2, 900, 600);
@@ -285,6 +355,7 @@ public class GUI extends Application {
         catSel2.setPromptText("select a category...");
 
         Label resultText2 = new Label();
+        ProgressIndicator busy2 = newBusyIndicator();
 
         Button answer2 = new Button("go");
         answer2.setOnAction(e -> {
@@ -297,8 +368,12 @@ public class GUI extends Application {
                 }
             }
             if (col >= 0){
-                String percentage = String.format("%.3f", data.percentageCountQuery(col));
-                resultText2.setText(cat + " had " + percentage +"% of user's view it.");
+                final int queryCol = col;
+                runQuery(resultText2, busy2, String.valueOf(queryCol), () -> data.percentageCountQueryAsync(queryCol),
+                        percent -> {
+                    String percentage = String.format("%.3f", percent);
+                    resultText2.setText(cat + " had " + percentage +"% of user's view it.");
+                });
             } else {
                 resultText2.setText("You have not selected a category");
             }
@@ -313,7 +388,7 @@ public class GUI extends Application {
         buttons2.setAlignment(Pos.CENTER);
 
         VBox layout3 = new VBox(70);
-        layout3.getChildren().addAll(instruct2, catSel2, resultText2, buttons2);
+        layout3.getChildren().addAll(instruct2, catSel2, resultText2, busy2, buttons2);
         layout3.setAlignment(Pos.CENTER);
 
         scene3 = new Scene(layout3, 900, 600);
@@ -331,6 +406,7 @@ public class GUI extends Application {
         catSel_3.setPromptText("select a category...");
 
         Label resultText3 = new Label();
+        ProgressIndicator busy3 = newBusyIndicator();
 
         Button answer3 = new Button("go");
         answer3.setOnAction(e -> {
@@ -354,12 +430,16 @@ public class GUI extends Application {
             }
 
             if (col1 >= 0 && col2 >=0){
-                boolean ans = data.comparisonQuery(col1, col2);
-                if (ans) {
-                    resultText3.setText(cat1 + " had more viewers than " + cat2);
-                } else{
-                    resultText3.setText(cat2 + " had more viewers than " + cat1);
-                }
+                final int queryCol1 = col1;
+                final int queryCol2 = col2;
+                runQuery(resultText3, busy3, queryCol1 + " " + queryCol2,
+                        () -> data.comparisonQueryAsync(queryCol1, queryCol2), ans -> {
+                    if (ans) {
+                        resultText3.setText(cat1 + " had more viewers than " + cat2);
+                    } else{
+                        resultText3.setText(cat2 + " had more viewers than " + cat1);
+                    }
+                });
             } else {
                 resultText3.setText("One or both categories not selected");
             }
@@ -377,7 +457,7 @@ public class GUI extends Application {
         buttons3.setAlignment(Pos.CENTER);
 
         VBox layout4 = new VBox(70);
-        layout4.getChildren().addAll(instruct3, dropdowns, resultText3, buttons3);
+        layout4.getChildren().addAll(instruct3, dropdowns, resultText3, busy3, buttons3);
         layout4.setAlignment(Pos.CENTER);
 
         scene4 = new Scene(layout4, 900, 600);
@@ -395,6 +475,7 @@ public class GUI extends Application {
         catSel4.setPromptText("select a category...");
 
         Label resultText4 = new Label();
+        ProgressIndicator busy4 = newBusyIndicator();
 
         Button returnMain4 = new Button("return");
         returnMain4.setOnAction(e -> {mainStage.setScene(scene1);});
@@ -419,12 +500,12 @@ public class GUI extends Application {
             }
 
             if (col >= 0){
-                int count = data.countThresholdQuery(threshold, col);
-                if (count > threshold){
-                    resultText4.setText(cat + " had " + count + " user's view it " + threshold + " times.");
-                } else {
-                    resultText4.setText(cat + " had " + count + " user's view it " + threshold + " times.");
-                }
+                final int queryCol = col;
+                final int queryThreshold = threshold;
+                runQuery(resultText4, busy4, queryCol + " " + queryThreshold,
+                        () -> data.countThresholdQueryAsync(queryThreshold, queryCol), count -> {
+                    resultText4.setText(cat + " had " + count + " user's view it " + queryThreshold + " times.");
+                });
             } else {
                 resultText4.setText("you did not select a category");
             }
@@ -439,7 +520,7 @@ public class GUI extends Application {
         buttons4.setAlignment(Pos.CENTER);
 
         VBox layout5 = new VBox(70);
-        layout5.getChildren().addAll(instruct4, inputs4, resultText4, buttons4);
+        layout5.getChildren().addAll(instruct4, inputs4, resultText4, busy4, buttons4);
         layout5.setAlignment(Pos.CENTER);
 
         scene5 = new Scene(layout5, 900, 600);
@@ -457,6 +538,7 @@ public class GUI extends Application {
         catSel_5.setPromptText("select a category...");
 
         Label resultText5 = new Label();
+        ProgressIndicator busy5 = newBusyIndicator();
 
         Button answer5 = new Button("go");
         answer5.setOnAction(e -> {
@@ -479,14 +561,18 @@ public class GUI extends Application {
             }
 
             if (col1 >= 0 && col2 >=0){
-                float percAns = data.comparePercentageQuery(col1, col2);
-                String percentage = String.format("%.6f", percAns);
-                boolean ans = data.comparisonQuery(col1, col2);
-                if (ans) {
-                    resultText5.setText(cat1 + " had more viewers than " + cat2 + " by " + percentage + "% more viewers");
-                } else{
-                    resultText5.setText(cat2 + " had more viewers than " + cat1 + " by " + percentage + "% more viewers");
-                }
+                final int queryCol1 = col1;
+                final int queryCol2 = col2;
+                runQuery(resultText5, busy5, queryCol1 + " " + queryCol2,
+                        () -> data.compareAsync(queryCol1, queryCol2, (percAns, ans) -> { // one future, cancelled whole
+                            String percentage = String.format("%.6f", percAns);
+                            if (ans) {
+                                return cat1 + " had more viewers than " + cat2 + " by " + percentage + "% more viewers";
+                            } else{
+                                return cat2 + " had more viewers than " + cat1 + " by " + percentage + "% more viewers";
+                            }
+                        }),
+                        resultText5::setText);
             } else {
                 resultText5.setText("One or both categories not selected");
             }
@@ -504,7 +590,7 @@ public class GUI extends Application {
         buttons5.setAlignment(Pos.CENTER);
 
         VBox layout6 = new VBox(70);
-        layout6.getChildren().addAll(instruct5, dropdowns5, resultText5, buttons5);
+        layout6.getChildren().addAll(instruct5, dropdowns5, resultText5, busy5, buttons5);
         layout6.setAlignment(Pos.CENTER);
 
         scene6 = new Scene(layout6, 900, 600);
@@ -526,19 +612,29 @@ public class GUI extends Application {
             public void run() {
                 try {
                     File dataFile = new File("datafile.txt");
-                    data.loadData(dataFile);
+                    loadReport = data.loadData(dataFile, LOAD_ERROR_BUDGET, null);
+                }
+                catch (IOException | RuntimeException e){
+                    loadError = e;                                       // shown on the splash screen
                 }
-                catch (IOException e){}                                   // do nothing
             }
         };
 
         final Task<Integer> progressbarTask = new Task<Integer>() {
-            public Integer call() {
-                while(data.getUsersProcessed() < data.getTotalUsers()){
+            public Integer call() throws Exception {
+                // skipped lines leave users unprocessed, so wait for the load thread instead of the last user
+                while(loadThread.isAlive()){
                     updateProgress(data.getUsersProcessed(), data.getTotalUsers());
                     updateMessage("importing data from msnbc . . .");
+                    loadThread.join(50);
+                }
+                if (loadError != null || loadReport == null) {
+                    Exception error = loadError != null ? loadError
+                            : new IOException("the load stopped without finishing");
+                    updateMessage("could not load data: " + error.getMessage());
+                    throw error;                                         // the splash stays up with the message
                 }
-                return data.getTotalUsers();
+                return data.getTotalUsers();                             // skipped lines are shown on the main stage
             }
         };
         data = new Data(users, categories);
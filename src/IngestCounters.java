@@ -0,0 +1,189 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running totals of the dataset (users, visitors per category and views per category) counted by the parse tasks of
+ * the loader while they read the file, so that they are known without a scan as soon as the data is parsed.
+ *
+ * The totals are split into stripes so that parse tasks running at once don't update the same memory. A parse task
+ * adds the totals of its whole buffer to one free stripe: it claims the stripe by making the stripe's sequence odd
+ * with a compare-and-set, adds its totals and makes the sequence even again. If the stripe is taken it moves on to the
+ * next one instead of waiting, so no writer ever blocks. A reader sums the stripes and reads a stripe again if its
+ * sequence was odd or changed while it was read, so a snapshot always holds the totals of whole buffers and never a
+ * buffer's users without its visitors.
+ *
+ * Each stripe keeps its sequence and its totals in one array, padded with a cache line of unused cells at both ends,
+ * so that two stripes never share a cache line however the arrays end up placed in the heap.
+ */
+public class IngestCounters {
+
+    /**
+     * A consistent copy of the totals
+     */
+    public static class Snapshot {
+        private final long users;
+        private final long[] visitors;
+        private final long[] views;
+
+        Snapshot(long users, long[] visitors, long[] views) {
+            this.users = users;
+            this.visitors = visitors;
+            this.views = views;
+        }
+
+        public long getUsers() {return users;}
+
+        public long getVisitors(int category) {return visitors[category];}
+
+        public long getViews(int category) {return views[category];}
+    }
+
+    private static final int PAD = 8;              // unused cells at each end of a stripe, 64 bytes
+    private static final int SEQUENCE = PAD;       // odd while a writer is updating the stripe
+    private static final int USERS = PAD + 1;
+    private static final int VISITORS = PAD + 2;   // visitors per category, then views per category
+
+    private final int categories;
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    /**
+     * Creates counters with every total at zero
+     * @param categories how many categories are in the dataset
+     */
+    public IngestCounters(int categories) {
+        this.categories = categories;
+        int count = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(VISITORS + 2 * categories + PAD);
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Adds the totals of a batch of users. Safe to call from any number of threads at once and never waits for
+     * another writer.
+     * @param users how many users are in the batch
+     * @param visitors how many users of the batch visited each category
+     * @param views how many views the batch made in each category
+     */
+    public void add(long users, long[] visitors, long[] views) {
+        int i = (int) Thread.currentThread().getId();
+        AtomicLongArray stripe;
+        long even;
+        while (true) {
+            stripe = stripes[i & mask];
+            even = stripe.get(SEQUENCE);
+            if ((even & 1) == 0 && stripe.compareAndSet(SEQUENCE, even, even + 1)) {
+                break;
+            }
+            i++; // taken by another writer, try the next stripe
+        }
+        stripe.set(USERS, stripe.get(USERS) + users); // the stripe is ours until the sequence is even again
+        for (int c = 0; c < categories; c++) {
+            if (visitors[c] != 0) {
+                stripe.set(VISITORS + c, stripe.get(VISITORS + c) + visitors[c]);
+            }
+            if (views[c] != 0) {
+                stripe.set(VISITORS + categories + c, stripe.get(VISITORS + categories + c) + views[c]);
+            }
+        }
+        stripe.set(SEQUENCE, even + 2);
+    }
+
+    /**
+     * Adds every total of a snapshot, used to merge counters that were filled separately
+     * @param snapshot the totals to add
+     */
+    public void add(Snapshot snapshot) {
+        add(snapshot.users, snapshot.visitors, snapshot.views);
+    }
+
+    /**
+     * Sets every total back to zero. Writers must not be adding at the same time.
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int cell = USERS; cell < VISITORS + 2 * categories; cell++) {
+                stripe.set(cell, 0);
+            }
+            stripe.addAndGet(SEQUENCE, 2); // readers in the middle of this stripe read it again
+        }
+    }
+
+    /**
+     * @return roughly how many bytes of heap the counters take, see MemoryFootprint
+     */
+    public long getMemoryBytes() {
+        long atomic = MemoryFootprint.OBJECT_HEADER + 8; // an AtomicLongArray without its array
+        return MemoryFootprint.array(stripes.length, MemoryFootprint.REFERENCE)
+                + stripes.length * (atomic + MemoryFootprint.array(VISITORS + 2 * categories + PAD, 8));
+    }
+
+    /**
+     * Sums one cell over every stripe. A single cell needs no retry, every update of it is atomic.
+     */
+    private long sum(int cell) {
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            total += stripe.get(cell);
+        }
+        return total;
+    }
+
+    /**
+     * @return how many users have been counted
+     */
+    public long getUsers() {
+        return sum(USERS);
+    }
+
+    /**
+     * @param category the category to consider
+     * @return how many counted users visited category at least once
+     */
+    public long getVisitors(int category) {
+        return sum(VISITORS + category);
+    }
+
+    /**
+     * @param category the category to consider
+     * @return how many views the counted users made in category
+     */
+    public long getViews(int category) {
+        return sum(VISITORS + categories + category);
+    }
+
+    /**
+     * Reads every total at once, consistently with each other. Can be called at any time, even while the loader is
+     * adding to the counters.
+     * @return the totals
+     */
+    public Snapshot snapshot() {
+        long users = 0;
+        long[] visitors = new long[categories];
+        long[] views = new long[categories];
+        long[] cells = new long[1 + 2 * categories];
+        for (AtomicLongArray stripe : stripes) {
+            while (true) {
+                long before = stripe.get(SEQUENCE);
+                if ((before & 1) != 0) {
+                    Thread.yield(); // a writer holds the stripe for the few updates of one buffer
+                    continue;
+                }
+                for (int cell = 0; cell < cells.length; cell++) {
+                    cells[cell] = stripe.get(USERS + cell);
+                }
+                if (stripe.get(SEQUENCE) == before) {
+                    break;
+                }
+            }
+            users += cells[0];
+            for (int c = 0; c < categories; c++) {
+                visitors[c] += cells[1 + c];
+                views[c] += cells[1 + categories + c];
+            }
+        }
+        return new Snapshot(users, visitors, views);
+    }
+}
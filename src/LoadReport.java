@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a load did: how many lines it read and stored, which lines it skipped and why, and how fast it went. Returned
+ * by PipelinedLoader, which fills it in file order as the parsed buffers are handed to the consumer.
+ *
+ * Only the first MAX_SAMPLES bad lines are described, the rest are only counted, so that a file full of bad lines
+ * doesn't fill the heap with messages. Every bad line is written to the quarantine stream when one is set.
+ */
+public class LoadReport {
+
+    public static final int MAX_SAMPLES = 100;
+
+    private long lines;
+    private long users;
+    private long skipped;
+    private long bytes;
+    private long nanos;
+    private final List<String> samples = new ArrayList<String>();
+
+    /**
+     * Adds a parsed buffer to the report
+     * @param lines how many lines the buffer held
+     * @param users how many of them were stored
+     * @param bytes how many bytes the buffer held
+     */
+    void addBuffer(long lines, long users, long bytes) {
+        this.lines += lines;
+        this.users += users;
+        this.bytes += bytes;
+    }
+
+    /**
+     * Adds a skipped line to the report
+     * @param line the line number in the file, from 1
+     * @param reason why the line was skipped
+     */
+    void addSkipped(long line, String reason) {
+        skipped++;
+        if (samples.size() < MAX_SAMPLES) {
+            samples.add("line " + line + ": " + reason);
+        }
+    }
+
+    void setNanos(long nanos) {this.nanos = nanos;}
+
+    /**
+     * @return how many lines were read
+     */
+    public long getLines() {return lines;}
+
+    /**
+     * @return how many users were stored
+     */
+    public long getUsers() {return users;}
+
+    /**
+     * @return how many bad lines were skipped
+     */
+    public long getSkipped() {return skipped;}
+
+    /**
+     * @return the first bad lines, as "line N: reason", at most MAX_SAMPLES of them
+     */
+    public List<String> getErrors() {return Collections.unmodifiableList(samples);}
+
+    /**
+     * @return how many uncompressed bytes were parsed
+     */
+    public long getBytes() {return bytes;}
+
+    /**
+     * @return how long the load took in seconds
+     */
+    public double getSeconds() {return nanos / 1e9;}
+
+    /**
+     * @return users stored per second
+     */
+    public double getUsersPerSecond() {
+        return nanos == 0 ? 0 : users / getSeconds();
+    }
+
+    /**
+     * @return uncompressed megabytes parsed per second
+     */
+    public double getMegabytesPerSecond() {
+        return nanos == 0 ? 0 : bytes / (1024.0 * 1024) / getSeconds();
+    }
+
+    /**
+     * @return a one line summary of the load
+     */
+    public String toString() {
+        String text = String.format("%d lines, %d users, %d skipped in %.2f s (%.0f users/s, %.1f MB/s)", lines, users,
+                skipped, getSeconds(), getUsersPerSecond(), getMegabytesPerSecond());
+        return samples.isEmpty() ? text : text + ", first bad " + samples.get(0);
+    }
+}
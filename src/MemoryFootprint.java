@@ -0,0 +1,288 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A report of how much memory a dataset takes and would take in other layouts. It reads every cell once to find the
+ * largest visit count and how many users visited each category, then predicts the size of each layout:
+ *
+ * INT_ROWS    - DataArray, an int array per user
+ * SHORT_CELLS - PackedDataArray with two byte cells
+ * BYTE_CELLS  - PackedDataArray with one byte cells
+ * SPARSE      - only the non-zero cells, as a category and a count per visit plus an offset per user
+ *
+ * The best layout is the smallest one that can hold every count and keeps reading a cell constant time, since scans
+ * read every cell of a category. SPARSE is predicted so its size can be compared, but never picked: reading a cell
+ * would have to search the user's visits.
+ *
+ * A dataset kept in column files can be measured without reading its cells, since reading them would load every
+ * column: the report then holds the resident columns and the size of the files, but no layouts or category ranges.
+ *
+ * Sizes are estimates for a 64-bit JVM with compressed references: a 12 byte object header, 16 bytes for an array
+ * header, 4 byte references and every object rounded up to 8 bytes.
+ */
+public class MemoryFootprint {
+
+    public enum Layout { INT_ROWS, SHORT_CELLS, BYTE_CELLS, SPARSE }
+
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    private static final long MAX_CELLS = Integer.MAX_VALUE - 8; // the largest PackedDataArray
+
+    private final int users;
+    private final int categories;
+    private final int[] max;      // max[c] = largest visit count of c
+    private final long[] visitors; // visitors[c] = users with a non-zero count for c
+    private final String storage;
+    private final long storageBytes;
+    private final long diskBytes;   // bytes of the column files, 0 for a dataset kept in memory
+    private final boolean cellsRead;
+    private final long[] predicted = new long[Layout.values().length];
+    private final String[] rejected = new String[Layout.values().length]; // why a layout can't be used, null if it can
+    private final Map<String, Long> structures = new LinkedHashMap<String, Long>();
+    private Layout best;  // null if the cells weren't read
+
+    /**
+     * Measures a dataset by reading every cell
+     * @param array the dataset to measure
+     */
+    public MemoryFootprint(DataArray array) {
+        this(array, true);
+    }
+
+    /**
+     * Measures a dataset
+     * @param array the dataset to measure
+     * @param readCells false to only report the storage, without predicting the other layouts
+     */
+    public MemoryFootprint(DataArray array, boolean readCells) {
+        users = array.getUsers();
+        categories = array.getCategories();
+        max = new int[categories];
+        visitors = new long[categories];
+        cellsRead = readCells;
+        storage = layoutName(array);
+        storageBytes = array.getMemoryBytes();
+        diskBytes = array instanceof ColumnFileArray ? ((ColumnFileArray) array).getFileBytes() : 0;
+        if (readCells) {
+            countCells(array);
+            predict();
+        }
+    }
+
+    /**
+     * Reads every cell for the largest count and the visitors of each category
+     */
+    private void countCells(DataArray array) {
+        if (array.isColumnar()) {
+            for (int c = 0; c < categories; c++) { // a column at a time, reading column files by cell would thrash
+                int[] column = array.getColumn(c);
+                for (int user = 0; user < users; user++) {
+                    count(c, column[user]);
+                }
+            }
+        } else {
+            for (int user = 0; user < users; user++) {
+                for (int c = 0; c < categories; c++) {
+                    count(c, array.getCategory(user, c));
+                }
+            }
+        }
+    }
+
+    private void count(int category, int count) {
+        if (count != 0) {
+            visitors[category]++;
+            max[category] = Math.max(max[category], count);
+        }
+    }
+
+    /**
+     * Bytes taken by an array
+     * @param length how many elements
+     * @param elementBytes bytes per element
+     */
+    static long array(long length, int elementBytes) {
+        return (ARRAY_HEADER + length * elementBytes + 7) & ~7L;
+    }
+
+    /**
+     * @return the name of the layout array uses
+     */
+    private static String layoutName(DataArray array) {
+        if (array instanceof PackedDataArray) {
+            return ((PackedDataArray) array).getWidth() == 1 ? Layout.BYTE_CELLS.name()
+                    : ((PackedDataArray) array).getWidth() == 2 ? Layout.SHORT_CELLS.name() : "INT_CELLS";
+        }
+        if (array instanceof ColumnFileArray) {
+            return "COLUMN_FILES";
+        }
+        return Layout.INT_ROWS.name();
+    }
+
+    private void predict() {
+        int largest = 0;
+        long nonZero = 0;
+        for (int c = 0; c < categories; c++) {
+            largest = Math.max(largest, max[c]);
+            nonZero += visitors[c];
+        }
+        long cells = (long) users * categories;
+        int width = PackedDataArray.widthOf(largest);
+
+        predicted[Layout.INT_ROWS.ordinal()] = array(users, REFERENCE) + users * array(categories, 4);
+        predicted[Layout.SHORT_CELLS.ordinal()] = array(cells, 2);
+        predicted[Layout.BYTE_CELLS.ordinal()] = array(cells, 1);
+        predicted[Layout.SPARSE.ordinal()] = array(users + 1L, 4) + array(nonZero, 1) + array(nonZero, width);
+
+        if (width > 2) {
+            rejected[Layout.SHORT_CELLS.ordinal()] = "counts up to " + largest + " need four bytes";
+        }
+        if (width > 1) {
+            rejected[Layout.BYTE_CELLS.ordinal()] = "counts up to " + largest + " need " + width + " bytes";
+        }
+        if (cells > MAX_CELLS) {
+            rejected[Layout.SHORT_CELLS.ordinal()] = cells + " cells don't fit in one array";
+            rejected[Layout.BYTE_CELLS.ordinal()] = rejected[Layout.SHORT_CELLS.ordinal()];
+        }
+        rejected[Layout.SPARSE.ordinal()] = "reading a cell would search the user's visits";
+
+        best = Layout.INT_ROWS;
+        for (Layout layout : Layout.values()) {
+            if (rejected[layout.ordinal()] == null && predicted[layout.ordinal()] < predicted[best.ordinal()]) {
+                best = layout;
+            }
+        }
+    }
+
+    /**
+     * Adds another structure of the dataset to the report
+     * @param name what the structure is
+     * @param bytes how many bytes it takes
+     */
+    public void addStructure(String name, long bytes) {
+        structures.put(name, bytes);
+    }
+
+    /**
+     * Copies a dataset into the best layout
+     * @param array the dataset this footprint measured
+     * @return a copy of array in the best layout, or array itself if it already takes no more memory than that
+     */
+    public DataArray convert(DataArray array) {
+        if (!cellsRead || array instanceof ColumnFileArray || getPredictedBytes(best) >= storageBytes) {
+            return array;
+        }
+        switch (best) {
+            case BYTE_CELLS:
+                return PackedDataArray.copyOf(array, 1);
+            case SHORT_CELLS:
+                return PackedDataArray.copyOf(array, 2);
+            default:
+                return array; // INT_ROWS, and a PackedDataArray that widened to ints is already smaller
+        }
+    }
+
+    public int getUsers() {return users;}
+
+    /**
+     * @param category the category to consider
+     * @return the largest visit count of category, 0 if the cells weren't read
+     */
+    public int getMax(int category) {return max[category];}
+
+    /**
+     * @param category the category to consider
+     * @return the fraction of users who visited category, 0 to 1, 0 if the cells weren't read
+     */
+    public double getDensity(int category) {
+        return users == 0 ? 0 : (double) visitors[category] / users;
+    }
+
+    /**
+     * @return bytes taken by the cells in their current layout
+     */
+    public long getStorageBytes() {return storageBytes;}
+
+    /**
+     * @return bytes the cells would take in layout, 0 if the cells weren't read
+     */
+    public long getPredictedBytes(Layout layout) {return predicted[layout.ordinal()];}
+
+    /**
+     * @return bytes the column files take on disk, 0 for a dataset kept in memory
+     */
+    public long getDiskBytes() {return diskBytes;}
+
+    /**
+     * @return false if only the storage was measured, and the layouts and category ranges are unknown
+     */
+    public boolean isCellsRead() {return cellsRead;}
+
+    /**
+     * @return the smallest layout that keeps reading a cell constant time, null if the cells weren't read
+     */
+    public Layout getBestLayout() {return best;}
+
+    /**
+     * @return bytes taken by the cells and every structure added to the report
+     */
+    public long getTotalBytes() {
+        long total = storageBytes;
+        for (long bytes : structures.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return a one line summary of the best layout and what switching to it saves
+     */
+    public String summary() {
+        if (!cellsRead) {
+            return String.format("storage %s: %s resident, %s on disk, cells not read", storage, size(storageBytes),
+                    size(diskBytes));
+        }
+        long bestBytes = getPredictedBytes(best);
+        if (bestBytes >= storageBytes) {
+            return String.format("storage %s: %s, already the most compact layout", storage, size(storageBytes));
+        }
+        return String.format("storage %s: %s, %s would take %s and save %s (%.0f%%)", storage, size(storageBytes),
+                best, size(bestBytes), size(storageBytes - bestBytes), 100.0 * (storageBytes - bestBytes)
+                        / storageBytes);
+    }
+
+    private static String size(long bytes) {
+        if (bytes < 1 << 20) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * @return the full report: every structure, every layout and the value range and density of every category
+     */
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%d users, %d categories%n", users, categories));
+        text.append(String.format("%-24s %12s%n", "cells (" + storage + ")", size(storageBytes)));
+        for (Map.Entry<String, Long> structure : structures.entrySet()) {
+            text.append(String.format("%-24s %12s%n", structure.getKey(), size(structure.getValue())));
+        }
+        text.append(String.format("%-24s %12s%n%n", "total", size(getTotalBytes())));
+        if (!cellsRead) {
+            return text.append(String.format("%-24s %12s%n", "column files on disk", size(diskBytes))).toString();
+        }
+
+        for (Layout layout : Layout.values()) {
+            String note = layout == best ? "best" : rejected[layout.ordinal()] != null ? rejected[layout.ordinal()] : "";
+            text.append(String.format("%-24s %12s  %s%n", layout, size(getPredictedBytes(layout)), note));
+        }
+        text.append(String.format("%n%-10s %10s %10s%n", "category", "max", "density"));
+        for (int c = 0; c < categories; c++) {
+            text.append(String.format("%-10d %10d %9.1f%%%n", c + 1, max[c], 100 * getDensity(c)));
+        }
+        return text.toString();
+    }
+}
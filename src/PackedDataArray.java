@@ -0,0 +1,203 @@
+import java.util.Arrays;
+
+/**
+ * A DataArray that keeps every cell in one flat array, user after user, with cells as narrow as the visit counts
+ * allow: one byte per cell while every count is below 256, two bytes below 65536, four bytes otherwise. Visit counts
+ * are small, so this usually takes a quarter of the memory of DataArray, which also pays an array header and a
+ * reference for every user. Storing a count that doesn't fit widens every cell.
+ *
+ * A cell is found by its position in the flat array, so every access checks the user and the category on their own,
+ * as DataArray's rows do, instead of letting a bad category read or write a cell of the next user.
+ *
+ * Data switches to this layout after a load when MemoryFootprint finds it smaller.
+ */
+public class PackedDataArray extends DataArray {
+
+    private static final int MAX_CELLS = Integer.MAX_VALUE - 8; // the largest array most JVMs can allocate
+
+    private byte[] bytes;   // the cells while width is 1
+    private short[] shorts; // the cells while width is 2
+    private int[] ints;     // the cells while width is 4
+    private int width;
+    private int rows;       // rows in use, the cell array may have spare capacity after an append
+    private final int cols;
+
+    /**
+     * Creates a new array of empty users
+     * @param rows how many rows or users in the dataset
+     * @param cols how many columns or categories are in the dataset
+     * @param width bytes per cell, 1, 2 or 4
+     */
+    public PackedDataArray(int rows, int cols, int width) {
+        this.rows = rows;
+        this.cols = cols;
+        this.width = width;
+        allocate(cells(rows));
+    }
+
+    /**
+     * Copies a dataset into a packed array
+     * @param source the dataset to copy
+     * @param width bytes per cell, wide enough for every count of source
+     * @return the copy
+     */
+    public static PackedDataArray copyOf(DataArray source, int width) {
+        int users = source.getUsers();
+        int categories = source.getCategories();
+        PackedDataArray copy = new PackedDataArray(users, categories, width);
+        for (int user = 0; user < users; user++) {
+            for (int category = 0; category < categories; category++) {
+                copy.setCategory(user, category, source.getCategory(user, category));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return how many cells rows users take, checked against the largest possible array
+     */
+    private int cells(long rows) {
+        long cells = rows * cols;
+        if (cells > MAX_CELLS) {
+            throw new IllegalStateException(rows + " users are too many for one packed array");
+        }
+        return (int) cells;
+    }
+
+    private void allocate(int cells) {
+        bytes = width == 1 ? new byte[cells] : null;
+        shorts = width == 2 ? new short[cells] : null;
+        ints = width == 4 ? new int[cells] : null;
+    }
+
+    /**
+     * @return how many cells the array can hold before it must grow
+     */
+    private int capacity() {
+        switch (width) {
+            case 1:
+                return bytes.length;
+            case 2:
+                return shorts.length;
+            default:
+                return ints.length;
+        }
+    }
+
+    /**
+     * Copies every cell into wider cells
+     * @param newWidth bytes per cell, wider than the current width
+     */
+    private void widen(int newWidth) {
+        byte[] oldBytes = bytes;
+        short[] oldShorts = shorts; // ints are the widest, so the old cells are bytes or shorts
+        int capacity = capacity();
+        width = newWidth;
+        allocate(capacity);
+        for (int i = rows * cols - 1; i >= 0; i--) {
+            put(i, oldBytes != null ? oldBytes[i] & 0xff : oldShorts[i] & 0xffff);
+        }
+    }
+
+    private int get(int cell) {
+        switch (width) {
+            case 1:
+                return bytes[cell] & 0xff;
+            case 2:
+                return shorts[cell] & 0xffff;
+            default:
+                return ints[cell];
+        }
+    }
+
+    private void put(int cell, int val) {
+        switch (width) {
+            case 1:
+                bytes[cell] = (byte) val;
+                break;
+            case 2:
+                shorts[cell] = (short) val;
+                break;
+            default:
+                ints[cell] = val;
+        }
+    }
+
+    /**
+     * @param val a visit count
+     * @return bytes per cell needed to store val
+     */
+    static int widthOf(long val) {
+        if (val >= 0 && val < 1 << 8) {
+            return 1;
+        }
+        return val >= 0 && val < 1 << 16 ? 2 : 4;
+    }
+
+    /**
+     * Adds empty rows to the end of the array. Storage grows by doubling so that appending one user at a time stays
+     * cheap.
+     * @param count how many rows to add
+     */
+    public void addUsers(int count) {
+        int needed = cells((long) rows + count);
+        if (needed > capacity()) {
+            int capacity = (int) Math.min(MAX_CELLS / cols * cols, Math.max(needed, 2L * capacity()));
+            switch (width) {
+                case 1:
+                    bytes = Arrays.copyOf(bytes, capacity);
+                    break;
+                case 2:
+                    shorts = Arrays.copyOf(shorts, capacity);
+                    break;
+                default:
+                    ints = Arrays.copyOf(ints, capacity);
+            }
+        }
+        rows += count; // the spare capacity is still zero, which is an empty user
+    }
+
+    public void setCategory(int user, int category, int val) {
+        int cell = cell(user, category);
+        int needed = widthOf(val);
+        if (needed > width) {
+            widen(needed);
+        }
+        put(cell, val);
+    }
+
+    public int getCategory(int user, int category) {
+        return get(cell(user, category));
+    }
+
+    /**
+     * @return the position of a user's count of a category in the cell array
+     * @throws ArrayIndexOutOfBoundsException if the user or the category is out of range
+     */
+    private int cell(int user, int category) {
+        if (category < 0 || category >= cols || user < 0 || user >= rows) {
+            throw new ArrayIndexOutOfBoundsException("user " + user + ", category " + category + " of " + rows
+                    + " users and " + cols + " categories");
+        }
+        return user * cols + category;
+    }
+
+    /**
+     * @return bytes per cell, 1, 2 or 4
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public long getMemoryBytes() {
+        return MemoryFootprint.array(capacity(), width);
+    }
+
+    public int getUsers() {
+        return rows;
+    }
+
+    public int getCategories() {
+        return cols;
+    }
+}
@@ -0,0 +1,505 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class reads a data file through a pipeline so that decompressing and parsing overlap.
+ *
+ * A decoder thread reads (and gunzips, if the file is gzip compressed) the file into a fixed pool of buffers, each
+ * ending on a line boundary. Every filled buffer is parsed by a task on the worker pool into the visit counts of its
+ * users. The calling thread hands the parsed buffers to a consumer in file order and returns each buffer to the pool.
+ * Because the decoder can only fill buffers that have been returned, it blocks when the parsers or the consumer fall
+ * behind.
+ *
+ * When counters are set, every parse task also totals the users, visitors and views of its buffer and adds them to the
+ * counters as soon as it is parsed, so the totals are known before the users are handed to the consumer. If the load
+ * fails, it waits for the parse tasks still running so that nothing is added to the counters after it returns.
+ *
+ * When sketches are set, every parse task also builds quantile sketches of its users' visits to each category and of
+ * their total views, and the calling thread merges them into the sketches right after handing the buffer to the
+ * consumer. The sketches then always describe exactly the users the consumer received.
+ *
+ * Bad lines are found by the parse tasks, so checking them costs nothing extra. A parse task skips each bad line and
+ * records where it is in the buffer and why it is bad; the calling thread turns that into a line number of the file,
+ * since it sees the buffers in order, and fails the load once more lines are bad than the error budget allows. Every
+ * load returns a LoadReport of the lines read, skipped and stored and how fast they were parsed.
+ *
+ * Only gzip is supported since it is the only compression format in the JDK.
+ */
+public class PipelinedLoader {
+
+    /**
+     * Receives the users of each buffer in the order they appear in the file
+     */
+    public interface BlockConsumer {
+        /**
+         * @param rows the visit counts of the users, categories values per user
+         * @param users how many users are in rows
+         */
+        void accept(int[] rows, int users);
+    }
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final BlockingQueue<Runnable> workers;
+    private final int categories;
+    private final int bufferSize;
+    private final int bufferCount;
+    private IngestCounters counters; // totals of the parsed users, null if not counted
+    private QuantileSketch[] sketches; // visits per category then total views of the consumed users, null if not kept
+    private int errorBudget; // how many bad lines may be skipped before the load fails
+    private OutputStream quarantine; // receives every skipped line, null if they are only counted
+
+    /**
+     * A pooled buffer of raw bytes along with the users parsed from it
+     */
+    private class Chunk implements Runnable {
+        byte[] bytes;
+        int length;
+        int[] rows;
+        int users;
+        long[] visitors;
+        long[] views;
+        QuantileSketch[] sketched; // this buffer's share of sketches, null if not kept
+        int lines;
+        int bad; // how many lines were skipped, the arrays below describe each of them
+        int[] badLines = new int[4]; // line number within the buffer, from 1
+        int[] badStarts = new int[4];
+        int[] badEnds = new int[4];
+        String[] badReasons = new String[4];
+        IOException error;
+        CountDownLatch parsed;
+
+        Chunk() {
+            bytes = new byte[bufferSize];
+            rows = new int[categories * 1024];
+            visitors = new long[categories];
+            views = new long[categories];
+        }
+
+        /**
+         * Parses the lines of the buffer, skipping and recording bad lines. Errors are kept so the calling thread can
+         * throw them, the worker threads must not die.
+         */
+        public void run() {
+            try {
+                parse();
+                if (counters != null) {
+                    counters.add(users, visitors, views);
+                }
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+            parsed.countDown();
+        }
+
+        private void parse() {
+            users = 0;
+            Arrays.fill(visitors, 0);
+            Arrays.fill(views, 0);
+            if (sketches != null && sketched == null) {
+                sketched = new QuantileSketch[categories + 1];
+                for (int c = 0; c <= categories; c++) {
+                    sketched[c] = new QuantileSketch();
+                }
+            }
+            if (sketched != null) {
+                for (QuantileSketch sketch : sketched) {
+                    sketch.clear();
+                }
+            }
+            lines = 0;
+            bad = 0;
+            int i = 0;
+            while (i < length) {
+                if (rows.length < (users + 1) * categories) {
+                    rows = Arrays.copyOf(rows, rows.length * 2);
+                }
+                int base = users * categories;
+                Arrays.fill(rows, base, base + categories, 0);
+                int start = i;
+                lines++;
+                String reason = null;
+                int number = 0;
+                boolean digits = false;
+                boolean any = false;
+                for (; i < length; i++) {
+                    byte b = bytes[i];
+                    if (b >= '0' && b <= '9') {
+                        if (number <= categories) { // already out of range, stop before it overflows
+                            number = number * 10 + (b - '0');
+                        }
+                        digits = true;
+                    } else if (b == ' ' || b == '\n' || b == '\r') {
+                        if (digits) {
+                            if (number < 1 || number > categories) {
+                                reason = "category " + token(i) + " is out of range";
+                                break;
+                            }
+                            count(base, number);
+                            any = true;
+                            number = 0;
+                            digits = false;
+                        }
+                        if (b == '\n') {
+                            i++;
+                            break;
+                        }
+                    } else {
+                        reason = "unexpected character '" + (char) b + "'";
+                        break;
+                    }
+                }
+                if (reason == null && digits) {
+                    if (number < 1 || number > categories) { // last line of the file without a newline
+                        reason = "category " + token(i) + " is out of range";
+                    } else {
+                        count(base, number);
+                        any = true;
+                    }
+                }
+                if (reason == null && !any) {
+                    i = skip(start, i > start && bytes[i - 1] == '\n' ? i - 1 : i, base, "empty line");
+                    continue;
+                }
+                if (reason != null) {
+                    i = skip(start, i, base, reason);
+                    continue;
+                }
+                if (sketched != null) {
+                    sketch(base);
+                }
+                users++;
+            }
+            if (sketched != null) {
+                for (int c = 0; c < categories; c++) {
+                    sketched[c].add(0, users - visitors[c]); // the users who never visited c
+                }
+            }
+        }
+
+        /**
+         * Adds the visits of a parsed user to the buffer's sketches, except the zeros which are added once per buffer
+         */
+        private void sketch(int base) {
+            int total = 0;
+            for (int c = 0; c < categories; c++) {
+                int count = rows[base + c];
+                if (count != 0) {
+                    sketched[c].add(count);
+                    total += count;
+                }
+            }
+            sketched[categories].add(total);
+        }
+
+        /**
+         * @param end where a number ends in the buffer
+         * @return the digits of the number, as written in the file
+         */
+        private String token(int end) {
+            int start = end;
+            while (start > 0 && bytes[start - 1] >= '0' && bytes[start - 1] <= '9') {
+                start--;
+            }
+            return new String(bytes, start, end - start);
+        }
+
+        /**
+         * Records a bad line and takes back the visits of it that were already counted
+         * @param start where the line starts in the buffer
+         * @param at where the problem was found
+         * @param base where the line's visit counts start in rows
+         * @param reason what is wrong with the line
+         * @return where the next line starts
+         */
+        private int skip(int start, int at, int base, String reason) {
+            for (int c = 0; c < categories; c++) {
+                if (rows[base + c] != 0) {
+                    visitors[c]--;
+                    views[c] -= rows[base + c];
+                }
+            }
+            int end = at;
+            while (end < length && bytes[end] != '\n') {
+                end++;
+            }
+            if (bad == badLines.length) {
+                badLines = Arrays.copyOf(badLines, bad * 2);
+                badStarts = Arrays.copyOf(badStarts, bad * 2);
+                badEnds = Arrays.copyOf(badEnds, bad * 2);
+                badReasons = Arrays.copyOf(badReasons, bad * 2);
+            }
+            badLines[bad] = lines;
+            badStarts[bad] = start;
+            badEnds[bad] = end;
+            badReasons[bad] = reason;
+            bad++;
+            return end < length ? end + 1 : end;
+        }
+
+        private void count(int base, int number) {
+            if (rows[base + number - 1]++ == 0) { // views are stored in file as 1-17 but stored in program as 0-16
+                visitors[number - 1]++;
+            }
+            views[number - 1]++;
+        }
+    }
+
+    /**
+     * Creates a loader that parses on the given worker pool with the default buffers
+     * @param workers queue of the worker thread pool
+     * @param categories how many categories are in the dataset
+     */
+    public PipelinedLoader(BlockingQueue<Runnable> workers, int categories) {
+        this(workers, categories, DEFAULT_BUFFER_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a loader that parses on the given worker pool
+     * @param workers queue of the worker thread pool
+     * @param categories how many categories are in the dataset
+     * @param bufferSize size in bytes of each pooled buffer
+     * @param bufferCount how many buffers can be in flight at once
+     */
+    public PipelinedLoader(BlockingQueue<Runnable> workers, int categories, int bufferSize, int bufferCount) {
+        this.workers = workers;
+        this.categories = categories;
+        this.bufferSize = bufferSize;
+        this.bufferCount = Math.max(2, bufferCount);
+    }
+
+    /**
+     * Makes every parse task add the totals of its users to counters
+     * @param counters the counters to add to, null to stop counting
+     */
+    public void setCounters(IngestCounters counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * Makes every parse task sketch the quantiles of its users, merged into sketches as the users are consumed
+     * @param sketches one sketch per category and one for the total views per user, null to stop sketching
+     */
+    public void setSketches(QuantileSketch[] sketches) {
+        this.sketches = sketches;
+    }
+
+    /**
+     * Lets the load skip bad lines instead of failing on the first one. A line is bad if it is empty or holds anything
+     * but category numbers separated by spaces. Each is reported with its line number in the LoadReport, and the load
+     * fails once more than errorBudget lines are bad. The default of 0 fails on the first bad line.
+     * @param errorBudget how many bad lines to skip at most
+     */
+    public void setErrorBudget(int errorBudget) {
+        if (errorBudget < 0) {
+            throw new IllegalArgumentException("negative error budget " + errorBudget);
+        }
+        this.errorBudget = errorBudget;
+    }
+
+    /**
+     * Writes every skipped line, as it was in the file, to quarantine so it can be fixed and loaded again
+     * @param quarantine where to write the bad lines, it is not closed. null to only count them
+     */
+    public void setQuarantine(OutputStream quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Opens a data file, decompressing it if it starts with the gzip magic number
+     * @param dataFile a plain or gzip compressed data file
+     * @return a stream of the uncompressed bytes
+     * @throws IOException
+     */
+    public static InputStream open(File dataFile) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(dataFile), 1 << 16);
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    /**
+     * Reads a data file and hands its users to the consumer in file order
+     * @param dataFile a plain or gzip compressed data file
+     * @param consumer receives the parsed users
+     * @return what was loaded and skipped
+     * @throws IOException if the file can't be read or has more bad lines than the error budget
+     */
+    public LoadReport load(File dataFile, BlockConsumer consumer) throws IOException {
+        InputStream in = open(dataFile);
+        try {
+            return load(in, consumer);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a stream of data and hands its users to the consumer in order
+     * @param in the uncompressed data
+     * @param consumer receives the parsed users
+     * @return what was loaded and skipped
+     * @throws IOException if the stream can't be read or has more bad lines than the error budget
+     */
+    public LoadReport load(InputStream in, BlockConsumer consumer) throws IOException {
+        long started = System.nanoTime();
+        LoadReport report = new LoadReport();
+        long line = 0; // lines before the buffer being consumed
+        BlockingQueue<Chunk> pool = new ArrayBlockingQueue<Chunk>(bufferCount);
+        BlockingQueue<Chunk> ordered = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            pool.add(new Chunk());
+        }
+        Chunk end = new Chunk(); // marks the end of the file in the ordered queue
+        IOException[] readError = new IOException[1];
+
+        Thread decoder = new Thread(() -> {
+            try {
+                decode(in, pool, ordered);
+            } catch (IOException e) {
+                readError[0] = e;
+            } catch (InterruptedException e) {
+                return; // the load was abandoned
+            }
+            try {
+                ordered.put(end);
+            } catch (InterruptedException e) {
+            }
+        }, "data decoder");
+        decoder.setDaemon(true);
+        decoder.start();
+
+        boolean finished = false;
+        try {
+            while (true) {
+                Chunk chunk = ordered.take();
+                if (chunk == end) {
+                    break;
+                }
+                chunk.parsed.await();
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                for (int k = 0; k < chunk.bad; k++) {
+                    String error = "line " + (line + chunk.badLines[k]) + ": " + chunk.badReasons[k];
+                    if (report.getSkipped() == errorBudget) {
+                        throw new IOException(errorBudget == 0 ? error : "more than " + errorBudget + " bad lines, "
+                                + error);
+                    }
+                    report.addSkipped(line + chunk.badLines[k], chunk.badReasons[k]);
+                    if (quarantine != null) {
+                        quarantine.write(chunk.bytes, chunk.badStarts[k], chunk.badEnds[k] - chunk.badStarts[k]);
+                        quarantine.write('\n');
+                    }
+                }
+                consumer.accept(chunk.rows, chunk.users);
+                report.addBuffer(chunk.lines, chunk.users, chunk.length);
+                line += chunk.lines;
+                if (sketches != null) {
+                    for (int c = 0; c <= categories; c++) {
+                        sketches[c].merge(chunk.sketched[c]);
+                    }
+                }
+                pool.put(chunk);
+            }
+            decoder.join();
+            finished = true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while loading data");
+        } finally {
+            decoder.interrupt();
+            if (!finished) {
+                abandon(decoder, ordered);
+            }
+        }
+        if (readError[0] != null) {
+            throw readError[0];
+        }
+        report.setNanos(System.nanoTime() - started);
+        return report;
+    }
+
+    /**
+     * Waits for the decoder to stop and for every buffer it handed out to be parsed, so that no parse task is left
+     * running after a failed load. The parse tasks are short, so an interrupt only delays this wait.
+     */
+    private void abandon(Thread decoder, BlockingQueue<Chunk> ordered) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                decoder.join();
+                Chunk chunk;
+                while ((chunk = ordered.poll()) != null) {
+                    if (chunk.parsed != null) { // null for the end marker
+                        chunk.parsed.await();
+                    }
+                }
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fills buffers from the stream, splitting them on the last newline, and sends each to the parsers and to the
+     * ordered queue.
+     */
+    private void decode(InputStream in, BlockingQueue<Chunk> pool, BlockingQueue<Chunk> ordered)
+            throws IOException, InterruptedException {
+        byte[] carry = new byte[0]; // the partial line at the end of the previous buffer
+        int carried = 0;
+        boolean eof = false;
+        while (!eof) {
+            Chunk chunk = pool.take();
+            if (chunk.bytes.length < carried * 2) {
+                chunk.bytes = new byte[carried * 2]; // a line longer than the buffer
+            }
+            System.arraycopy(carry, 0, chunk.bytes, 0, carried);
+            int length = carried;
+            while (length < chunk.bytes.length) {
+                int read = in.read(chunk.bytes, length, chunk.bytes.length - length);
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+                length += read;
+            }
+
+            int split = length;
+            if (!eof) {
+                while (split > 0 && chunk.bytes[split - 1] != '\n') {
+                    split--;
+                }
+            }
+            carried = length - split;
+            if (carry.length < carried) {
+                carry = new byte[Math.max(carried, carry.length * 2)];
+            }
+            System.arraycopy(chunk.bytes, split, carry, 0, carried);
+
+            chunk.length = split;
+            chunk.error = null;
+            chunk.parsed = new CountDownLatch(1);
+            ordered.put(chunk);
+            try {
+                workers.put(chunk);
+            } catch (InterruptedException e) {
+                chunk.error = new InterruptedIOException("interrupted while loading data");
+                chunk.parsed.countDown(); // never parsed, but nothing may wait for it forever
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.Arrays;
+
+/**
+ * A streaming sketch of a distribution of non-negative counts that answers quantiles within 1% of the true value
+ * using memory that grows with the logarithm of the largest count, not with how many counts were added. Counts are
+ * put in buckets whose bounds grow by a factor of gamma, so every count in a bucket is within 1% of the bucket's
+ * middle (the DDSketch scheme). Zeros are kept apart, since most users never visit most categories.
+ *
+ * Because the counts are integers, a quantile is rounded to the nearest integer, which makes it exact for counts below
+ * 50. Two sketches are merged by adding their buckets, so sketches built on separate parts of a dataset (the users of
+ * a shard, or of an appended file) merge into the sketch of the whole.
+ *
+ * This class is not thread safe. The loader builds a sketch per buffer on the parse tasks and merges them in order on
+ * the loading thread, and Data guards its sketches with its read/write lock.
+ */
+public class QuantileSketch {
+
+    private static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final int[] SMALL_INDEX = new int[1024]; // the bucket of every small count, log is slow
+
+    static {
+        for (int value = 1; value < SMALL_INDEX.length; value++) {
+            SMALL_INDEX[value] = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+        }
+    }
+
+    private long zeros;
+    private long[] buckets = new long[64]; // buckets[i] = counts in (gamma^(i-1), gamma^i]
+    private long total;
+
+    /**
+     * @param value a count of at least 1
+     * @return the bucket of value
+     */
+    private static int index(long value) {
+        if (value < SMALL_INDEX.length) {
+            return SMALL_INDEX[(int) value];
+        }
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /**
+     * Adds a count
+     * @param value the count to add, at least 0
+     */
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    /**
+     * Adds a count several times, or takes it back out
+     * @param value the count to add, at least 0
+     * @param times how many times to add it, negative to remove counts that were added before
+     */
+    public void add(long value, long times) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative count " + value);
+        }
+        total += times;
+        if (value == 0) {
+            zeros += times;
+            return;
+        }
+        int i = index(value);
+        if (i >= buckets.length) {
+            buckets = Arrays.copyOf(buckets, Math.max(i + 1, buckets.length * 2));
+        }
+        buckets[i] += times;
+    }
+
+    /**
+     * Adds every count of another sketch to this one
+     * @param other the sketch to merge in, it is not changed
+     */
+    public void merge(QuantileSketch other) {
+        if (other.buckets.length > buckets.length) {
+            buckets = Arrays.copyOf(buckets, other.buckets.length);
+        }
+        for (int i = 0; i < other.buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        zeros += other.zeros;
+        total += other.total;
+    }
+
+    /**
+     * Removes every count, keeping the buckets' memory
+     */
+    public void clear() {
+        Arrays.fill(buckets, 0);
+        zeros = 0;
+        total = 0;
+    }
+
+    /**
+     * @return a copy that can be changed or merged without changing this sketch
+     */
+    public QuantileSketch copy() {
+        QuantileSketch copy = new QuantileSketch();
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * @return how many counts were added
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * The nearest-rank quantile: the smallest count that at least q of the counts are less than or equal to
+     * @param q the quantile, from 0 to 1. 0.5 is the median
+     * @return the quantile within 1%, rounded to an integer. -1 if the sketch is empty
+     */
+    public long quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile " + q + " is not between 0 and 1");
+        }
+        if (total <= 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = zeros;
+        if (seen >= rank) {
+            return 0;
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.max(1, Math.round(2 * Math.pow(GAMMA, i) / (GAMMA + 1))); // middle of the bucket
+            }
+        }
+        return -1; // counts were removed that were never added
+    }
+}
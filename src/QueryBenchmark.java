@@ -0,0 +1,111 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Command line benchmark of the steady-state query path. It loads a data file (or generates one), warms the queries
+ * up, then runs every query type many times and reports the time per query and the bytes allocated per query by all
+ * threads, for a Data with aggregates (counter and histogram paths) and one without (visitor counters and scan path). After warm-up the
+ * allocations should be zero.
+ *
+ * Usage: java QueryBenchmark [dataFile | users] [queries]
+ *
+ * @author Robert Bofinger, Preston Mackert
+ *
+ */
+
+public class QueryBenchmark {
+
+    private static final int CATEGORIES = 17;
+
+    private static int sink; // keeps the results alive so the queries can't be optimized away
+
+    /**
+     * Runs every query type with varying arguments
+     * @param data the dataset to query
+     * @param queries how many queries to run
+     */
+    private static void run(Data data, int queries) {
+        for (int i = 0; i < queries; i++) {
+            int a = i % CATEGORIES;
+            int b = (i / CATEGORIES) % CATEGORIES;
+            switch (i % 5) {
+                case 0:
+                    sink += data.countQuery(1000, a) ? 1 : 0;
+                    break;
+                case 1:
+                    sink += (int) data.percentageCountQuery(a);
+                    break;
+                case 2:
+                    sink += data.comparisonQuery(a, b) ? 1 : 0;
+                    break;
+                case 3:
+                    sink += data.countThresholdQuery(1 + i % 7, a);
+                    break;
+                default:
+                    sink += (int) data.comparePercentageQuery(a, b);
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the given threads
+     */
+    private static long allocated(com.sun.management.ThreadMXBean threads, long[] ids) {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    /**
+     * Benchmarks one Data
+     * @return bytes allocated per query after warm-up
+     */
+    private static double measure(String name, Data data, int queries) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long warmUp = System.nanoTime();
+        do { // warm up, compiles the query path and fills the plan caches, until the JIT has had time to settle
+            run(data, Math.max(queries, 20000));
+        } while (System.nanoTime() - warmUp < 2_000_000_000L);
+        long[] ids = threads.getAllThreadIds();
+        long overhead = -allocated(threads, ids) + allocated(threads, ids); // what measuring itself allocates
+
+        long before = allocated(threads, ids);
+        long start = System.nanoTime();
+        run(data, queries);
+        long nanos = System.nanoTime() - start;
+        long bytes = allocated(threads, ids) - before - overhead;
+
+        double perQuery = (double) Math.max(0, bytes) / queries;
+        System.out.printf("%-12s %10.2f us/query %10.2f bytes/query%n", name, nanos / 1000.0 / queries, perQuery);
+        return perQuery;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String source = args.length > 0 ? args[0] : "200000";
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        File file = new File(source);
+        if (!file.exists()) {
+            file = File.createTempFile("benchmark", ".txt");
+            file.deleteOnExit();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            new DataGenerator().generate(out, Long.parseLong(source), 1, Runtime.getRuntime().availableProcessors());
+            out.close();
+        }
+
+        Data aggregated = new Data(0, CATEGORIES);
+        aggregated.loadData(file);
+        Data scanned = new Data(0, CATEGORIES, false);
+        scanned.loadData(file);
+        System.out.println(aggregated.getTotalUsers() + " users");
+
+        double allocations = measure("aggregates", aggregated, queries) + measure("scan", scanned, queries / 20);
+        if (allocations > 0) {
+            System.out.println("the steady-state query path allocated memory");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary log of the queries run against a Data, used to capture a real workload and replay it later (see
+ * WorkloadReplay). Attach one with Data.setQueryLog and every query is recorded with its arguments, when it started,
+ * how long it took and what it returned. Only the queries of QueryType over every user are recorded; segment queries,
+ * distributions, quantiles and co-occurrence are not part of a captured workload.
+ *
+ * Records are appended under the log's lock, which Data takes after releasing its own read lock, so logging only makes
+ * concurrent queries wait for each other's append and never holds up a load.
+ *
+ * The file starts with the magic number and a version, then one record per query: the start time as a varint delta
+ * from the previous record, the query type as one byte, both arguments as zigzag varints, the latency as a varint of
+ * nanoseconds and the result as a double. A typical record is 13 to 16 bytes.
+ */
+public class QueryLog implements Closeable {
+
+    private static final int MAGIC = 0x4d534e51; // "MSNQ"
+    private static final int VERSION = 1;
+
+    /**
+     * One recorded query
+     */
+    public static class Entry {
+        private final long startNanos;
+        private final QueryType type;
+        private final int arg1;
+        private final int arg2;
+        private final long latencyNanos;
+        private final double result;
+
+        public Entry(long startNanos, QueryType type, int arg1, int arg2, long latencyNanos, double result) {
+            this.startNanos = startNanos;
+            this.type = type;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.latencyNanos = latencyNanos;
+            this.result = result;
+        }
+
+        /**
+         * @return when the query started, in nanoseconds since the log was opened
+         */
+        public long getStartNanos() {return startNanos;}
+
+        public QueryType getType() {return type;}
+
+        public int getArg1() {return arg1;}
+
+        public int getArg2() {return arg2;}
+
+        public long getLatencyNanos() {return latencyNanos;}
+
+        /**
+         * @return the result as a number, 1 or 0 for true or false
+         */
+        public double getResult() {return result;}
+    }
+
+    private final DataOutputStream out;
+    private final long openedNanos;
+    private long lastStart;
+    private IOException failure; // the first write that failed
+
+    /**
+     * Creates a new log file, replacing any existing one
+     * @param file where to write the log
+     * @throws IOException
+     */
+    public QueryLog(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        openedNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a query. Called by Data after every query, from any thread.
+     * @param type the query
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @param startNanos System.nanoTime() when the query started
+     * @param latencyNanos how long the query took
+     * @param result the result as a number, 1 or 0 for true or false
+     */
+    public synchronized void record(QueryType type, int arg1, int arg2, long startNanos, long latencyNanos,
+                                    double result) {
+        long start = Math.max(lastStart, startNanos - openedNanos); // concurrent queries may finish out of order
+        try {
+            writeVarLong(start - lastStart);
+            out.writeByte(type.ordinal());
+            writeVarLong(((arg1 << 1) ^ (arg1 >> 31)) & 0xffffffffL);
+            writeVarLong(((arg2 << 1) ^ (arg2 >> 31)) & 0xffffffffL);
+            writeVarLong(latencyNanos);
+            out.writeDouble(result);
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e; // a broken log must not break the query, close() reports it
+            }
+            return;
+        }
+        lastStart = start;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int zigzag(long value) {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+
+    /**
+     * Flushes and closes the log
+     * @throws IOException if the log couldn't be written
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads every record of a log file
+     * @param file a log written by QueryLog
+     * @return the recorded queries in the order they started
+     * @throws IOException if the file isn't a query log
+     */
+    public static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a query log");
+            }
+            QueryType[] types = QueryType.values();
+            long start = 0;
+            while (true) {
+                long delta;
+                try {
+                    delta = readVarLong(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                start += delta;
+                QueryType type = types[in.readUnsignedByte()];
+                int arg1 = zigzag(readVarLong(in));
+                int arg2 = zigzag(readVarLong(in));
+                long latency = readVarLong(in);
+                entries.add(new Entry(start, type, arg1, arg2, latency, in.readDouble()));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.Arrays;
+
+/**
+ * This class decides how Data answers a query. It knows which aggregates have been built, estimates the cost of every
+ * way of answering the query from the size of the dataset and picks the cheapest one. The estimates are in
+ * nanoseconds, and the per-row and per-bucket costs are recalibrated from the measured time of every query.
+ *
+ * The possible paths are:
+ * COUNTER   - read the visitor counters counted while loading, or the comparison counters of the aggregates,
+ *             constant time
+ * HISTOGRAM - sum the buckets of a category's visit histogram from the threshold up
+ * SCAN      - the partitioned full scan on the worker pool
+ *
+ * A query limited to a segment can only scan the segment's members, so its plan is always SCAN, estimated from the
+ * size of the segment.
+ */
+public class QueryPlanner {
+
+    public enum Path { COUNTER, HISTOGRAM, SCAN }
+
+    private static final Path[] PATHS = Path.values(); // values() copies the array on every call
+
+    static final int SMALL_SEGMENT = 16384; // segments up to this size are scanned without the worker threads
+
+    /**
+     * A planned query. Once the query has run it also holds the result and the measured time, and its toString is the
+     * explain output. Plans are reused by Data from one query to the next, so planning allocates nothing; the rejected
+     * paths are only formatted when the plan is printed.
+     */
+    public static class Plan {
+        private QueryType type;
+        private int arg1;
+        private int arg2;
+        private Segment segment; // null when the query covers every user
+        private Path path;
+        private final double[] costs = new double[Path.values().length]; // estimate of every path, NaN if impossible
+        private final long[] rows = new long[Path.values().length];
+        private double value;
+        private long actualNanos = -1;
+
+        public QueryType getType() {return type;}
+
+        public Path getPath() {return path;}
+
+        /**
+         * @return the segment the query is limited to, null if it covers every user
+         */
+        public Segment getSegment() {return segment;}
+
+        public double getEstimatedNanos() {return costs[path.ordinal()];}
+
+        /**
+         * @return how many users the path reads, buckets for HISTOGRAM
+         */
+        public long getEstimatedRows() {return rows[path.ordinal()];}
+
+        /**
+         * @return the time the query took, -1 if it has not run
+         */
+        public long getActualNanos() {return actualNanos;}
+
+        /**
+         * @return the result as a number, 1 or 0 for true or false
+         */
+        public double getValue() {return value;}
+
+        /**
+         * @return the result as the query's method returns it
+         */
+        public Object getResult() {
+            switch (type) {
+                case COUNT:
+                case COMPARISON:
+                    return value != 0;
+                case THRESHOLD:
+                case COMPARE_COUNT:
+                    return (int) value;
+                default:
+                    return (float) value;
+            }
+        }
+
+        public String toString() {
+            String text = String.format("%s(%d, %d)%s: %s reading %d, estimated %.1f us",
+                    type.getMethod(), arg1, arg2, segment == null ? "" : " in " + segment.getName(), path,
+                    getEstimatedRows(), getEstimatedNanos() / 1000);
+            if (actualNanos >= 0) {
+                text += String.format(", actual %.1f us, result %s", actualNanos / 1000.0, getResult());
+            }
+            for (Path other : Path.values()) {
+                if (other != path && !Double.isNaN(costs[other.ordinal()])) {
+                    text += String.format("%n  rejected %s reading %d, estimated %.1f us", other,
+                            rows[other.ordinal()], costs[other.ordinal()] / 1000);
+                }
+            }
+            return text;
+        }
+    }
+
+    private static final double COUNTER_NANOS = 100;   // reading a counter, mostly the cost of the call itself
+    private static final double DISPATCH_NANOS = 2000; // queueing a scan task and waiting for it
+
+    private CategoryAggregates aggregates; // null when no aggregates are maintained
+    private IngestCounters counters; // null when the visitors weren't counted while loading
+    private final int taskCount;
+    private final int threads;
+
+    // calibrated from measured queries. Updates from concurrent queries may race, which only loses a sample.
+    private volatile double nanosPerRow = 1.0;
+    private volatile double nanosPerBucket = 1.0;
+
+    /**
+     * Creates a planner with no aggregates
+     * @param taskCount how many tasks a scan is split into
+     * @param threads how many worker threads run the tasks
+     */
+    public QueryPlanner(int taskCount, int threads) {
+        this.taskCount = taskCount;
+        this.threads = threads;
+    }
+
+    /**
+     * Registers the aggregates that Data keeps up to date, or removes them
+     * @param aggregates the aggregates, null if there are none
+     */
+    public void setAggregates(CategoryAggregates aggregates) {
+        this.aggregates = aggregates;
+    }
+
+    /**
+     * Registers the counters that the loader fills in, or removes them
+     * @param counters the counters, null if there are none
+     */
+    public void setCounters(IngestCounters counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * @return true if the counter and histogram paths can be used
+     */
+    public boolean hasAggregates() {
+        return aggregates != null;
+    }
+
+    /**
+     * Picks the cheapest path for a query
+     * @param plan the plan to fill in, its previous contents are overwritten
+     * @param type the query
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @param users how many users are in the dataset
+     */
+    public void plan(Plan plan, QueryType type, int arg1, int arg2, int users) {
+        int steps = type == QueryType.COMPARISON ? 2 : 1; // comparing visitors counts both categories
+        double[] costs = plan.costs;
+        long[] rows = plan.rows;
+        Arrays.fill(costs, Double.NaN);
+
+        boolean comparing = type == QueryType.COMPARE_PERCENTAGE || type == QueryType.COMPARE_COUNT;
+        if (comparing ? aggregates != null
+                : counters != null && (type != QueryType.THRESHOLD || arg1 == 1)) { // visitors have at least 1 view
+            costs[Path.COUNTER.ordinal()] = steps * COUNTER_NANOS;
+            rows[Path.COUNTER.ordinal()] = 0;
+        }
+        if (aggregates != null && !comparing) {
+            long buckets = buckets(type, arg1, arg2);
+            costs[Path.HISTOGRAM.ordinal()] = steps * COUNTER_NANOS + buckets * nanosPerBucket;
+            rows[Path.HISTOGRAM.ordinal()] = buckets;
+        }
+        double scanRows = Math.ceil((double) users / Math.min(taskCount, threads)); // rows on the critical path
+        costs[Path.SCAN.ordinal()] = steps * (scanRows * nanosPerRow
+                + DISPATCH_NANOS * Math.ceil((double) taskCount / threads));
+        rows[Path.SCAN.ordinal()] = (long) steps * users;
+
+        Path best = Path.SCAN;
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] < costs[best.ordinal()]) { // NaN never compares smaller
+                best = PATHS[i];
+            }
+        }
+        plan.type = type;
+        plan.arg1 = arg1;
+        plan.arg2 = arg2;
+        plan.segment = null;
+        plan.path = best;
+        plan.actualNanos = -1;
+    }
+
+    /**
+     * Plans a query limited to a segment, which can only be a scan of the segment's members
+     * @param plan the plan to fill in, its previous contents are overwritten
+     * @param type the query
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @param segment the users the query covers
+     */
+    public void plan(Plan plan, QueryType type, int arg1, int arg2, Segment segment) {
+        int steps = type == QueryType.COMPARISON ? 2 : 1;
+        Arrays.fill(plan.costs, Double.NaN);
+        int size = segment.size();
+        double cost;
+        if (size <= SMALL_SEGMENT) {
+            cost = size * nanosPerRow; // on the calling thread alone
+        } else {
+            cost = Math.ceil((double) size / Math.min(taskCount, threads)) * nanosPerRow
+                    + DISPATCH_NANOS * Math.ceil((double) taskCount / threads);
+        }
+        plan.costs[Path.SCAN.ordinal()] = steps * cost;
+        plan.rows[Path.SCAN.ordinal()] = (long) steps * size;
+        plan.type = type;
+        plan.arg1 = arg1;
+        plan.arg2 = arg2;
+        plan.segment = segment;
+        plan.path = Path.SCAN;
+        plan.actualNanos = -1;
+    }
+
+    /**
+     * How many histogram buckets a query sums
+     */
+    private long buckets(QueryType type, int arg1, int arg2) {
+        switch (type) {
+            case COUNT:
+                return aggregates.getBuckets(arg2) - 1;
+            case PERCENTAGE:
+                return aggregates.getBuckets(arg1) - 1;
+            case COMPARISON:
+                return aggregates.getBuckets(arg1) + aggregates.getBuckets(arg2) - 2;
+            default:
+                return Math.max(0, aggregates.getBuckets(arg2) - Math.max(arg1, 1));
+        }
+    }
+
+    /**
+     * Records the outcome of a plan and recalibrates the cost of its path
+     * @param plan the plan that ran
+     * @param result what the query returned
+     * @param nanos how long the query took
+     */
+    public void finish(Plan plan, double result, long nanos) {
+        plan.value = result;
+        plan.actualNanos = nanos;
+        int steps = plan.type == QueryType.COMPARISON ? 2 : 1;
+        long estimatedRows = plan.getEstimatedRows();
+        if (plan.segment != null) {
+            return; // a segment's scan reads users out of order, it would skew the cost of a full scan
+        }
+        if (plan.path == Path.SCAN && estimatedRows > 0) {
+            double perRow = (nanos / steps - DISPATCH_NANOS * Math.ceil((double) taskCount / threads))
+                    / Math.ceil((double) estimatedRows / steps / Math.min(taskCount, threads));
+            nanosPerRow = 0.8 * nanosPerRow + 0.2 * Math.max(0.05, perRow);
+        } else if (plan.path == Path.HISTOGRAM && estimatedRows > 0) {
+            double perBucket = (nanos - steps * COUNTER_NANOS) / estimatedRows;
+            nanosPerBucket = 0.8 * nanosPerBucket + 0.2 * Math.max(0.05, perBucket);
+        }
+    }
+}
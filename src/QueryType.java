@@ -0,0 +1,70 @@
+/**
+ * The queries that Data answers. Every query takes two int arguments, in the same order as the parameters of its
+ * method in Data.
+ */
+public enum QueryType {
+    COUNT("countQuery"),                          // Are there more than _____ users who looked at X
+    PERCENTAGE("percentageCountQuery"),           // What percent of users looked at X (second argument unused)
+    COMPARISON("comparisonQuery"),                // Are there more users who looked at X than Y
+    THRESHOLD("countThresholdQuery"),             // How many users viewed X _____ number of times
+    COMPARE_PERCENTAGE("comparePercentageQuery"), // What percent of users looked at X more than Y
+    COMPARE_COUNT("compareCountQuery");           // How many users looked at X more than Y
+
+    private final String method;
+
+    QueryType(String method) {
+        this.method = method;
+    }
+
+    /**
+     * @return the name of the Data method that answers this query
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Checks that the arguments of the query that name a category are categories of the dataset. The first argument of
+     * COUNT and THRESHOLD is a threshold and the second of PERCENTAGE is unused, so those aren't checked.
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @param categories how many categories the dataset has
+     * @throws IllegalArgumentException if a category argument isn't between 0 and categories - 1
+     */
+    public void checkCategories(int arg1, int arg2, int categories) {
+        switch (this) {
+            case COUNT:
+            case THRESHOLD:
+                checkCategory(arg2, categories);
+                break;
+            case PERCENTAGE:
+                checkCategory(arg1, categories);
+                break;
+            default:
+                checkCategory(arg1, categories);
+                checkCategory(arg2, categories);
+        }
+    }
+
+    private static void checkCategory(int category, int categories) {
+        if (category < 0 || category >= categories) {
+            throw new IllegalArgumentException("category " + category + " is out of range 0-" + (categories - 1));
+        }
+    }
+
+    /**
+     * @return the value the query returns when it could not be answered
+     */
+    public Object errorResult() {
+        switch (this) {
+            case COUNT:
+            case COMPARISON:
+                return false;
+            case THRESHOLD:
+            case COMPARE_COUNT:
+                return -1;
+            default:
+                return -1f;
+        }
+    }
+}
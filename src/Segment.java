@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+/**
+ * A named group of users, the users who visited a category at least a given number of times ("heavy sports readers"
+ * are the users with at least 5 views of sports). Data builds it once with a parallel pass and every query can then be
+ * asked again inside the segment, at a cost that grows with the size of the segment instead of the whole dataset.
+ *
+ * The members are kept as a sorted array of user ids when the segment is small, and as a bitmap with a bit per user
+ * once that is smaller, which is when more than one user in 32 is a member.
+ */
+public class Segment {
+
+    private final String name;
+    private final int category;
+    private final int minViews;
+    private final int[] ids;   // the members in order, null when stored as a bitmap
+    private final long[] bits; // bit u is set when user u is a member, null when stored as ids
+    private final int size;
+    private final int builtFor; // how many users were loaded when it was built
+
+    /**
+     * Creates a segment from its members
+     * @param name the name of the segment
+     * @param category the category its members visited
+     * @param minViews how many times they visited it at least
+     * @param members the ids of the members in increasing order, may be longer than size
+     * @param size how many members there are
+     * @param users how many users are in the dataset
+     * @param builtFor how many users were loaded when the members were found
+     */
+    Segment(String name, int category, int minViews, int[] members, int size, int users, int builtFor) {
+        this.name = name;
+        this.category = category;
+        this.minViews = minViews;
+        this.size = size;
+        this.builtFor = builtFor;
+        if (size > users / 32) {
+            ids = null;
+            bits = new long[(users + 63) >>> 6];
+            for (int i = 0; i < size; i++) {
+                bits[members[i] >>> 6] |= 1L << members[i];
+            }
+        } else {
+            ids = members.length == size ? members : Arrays.copyOf(members, size);
+            bits = null;
+        }
+    }
+
+    public String getName() {return name;}
+
+    public int getCategory() {return category;}
+
+    public int getMinViews() {return minViews;}
+
+    /**
+     * @return how many users are in the segment
+     */
+    public int size() {return size;}
+
+    /**
+     * @return true if the members are stored as a bitmap, false if as a sorted array of ids
+     */
+    public boolean isBitmap() {return bits != null;}
+
+    /**
+     * @return how many users were loaded when the segment was built, it is out of date once more are loaded
+     */
+    int getBuiltFor() {return builtFor;}
+
+    /**
+     * @return the ids of the members in order, null if the segment is a bitmap
+     */
+    int[] getIds() {return ids;}
+
+    /**
+     * @return the bitmap of the members, null if the segment is stored as ids
+     */
+    long[] getBits() {return bits;}
+
+    /**
+     * @param user a user id
+     * @return true if the user is in the segment
+     */
+    public boolean contains(int user) {
+        if (bits != null) {
+            return (user >>> 6) < bits.length && (bits[user >>> 6] & (1L << user)) != 0;
+        }
+        return Arrays.binarySearch(ids, user) >= 0;
+    }
+
+    /**
+     * @return roughly how many bytes of heap the members take, see MemoryFootprint
+     */
+    public long getMemoryBytes() {
+        return bits != null ? MemoryFootprint.array(bits.length, 8) : MemoryFootprint.array(ids.length, 4);
+    }
+}
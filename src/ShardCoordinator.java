@@ -0,0 +1,306 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The coordinator of the sharded mode. The dataset is split into shard files, each loaded by a ShardWorker in its own
+ * JVM, so that a dataset is no longer bounded by the heap and cores of one process. Queries are sent to every worker
+ * at once over local sockets and the partial counts are added together, the same way Data adds the results of its
+ * tasks, so the answers are the same as a single Data would give.
+ *
+ * If a worker dies or stops answering during a query, it is started again on the same shard file and the shard is
+ * asked again once. If that fails too, or the worker can't answer the request, the query returns its error value,
+ * like Data does when interrupted.
+ *
+ * @author Robert Bofinger, Preston Mackert
+ *
+ */
+
+public class ShardCoordinator implements Closeable {
+
+    private static final int TIMEOUT_MILLIS = 60000; // a worker that takes longer is treated as dead
+
+    private final String workerClass; // main class of the worker processes
+    private final int timeoutMillis;
+
+    /**
+     * One worker process and the connection to it
+     */
+    private class Shard {
+        private final File file;
+        private Process process;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Shard(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Starts the worker process and waits until it has loaded the shard
+         */
+        synchronized void start() throws IOException {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), workerClass,
+                    file.getPath()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            BufferedReader ready = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line = ready.readLine();
+            if (line == null || !line.startsWith("ready ")) {
+                process.destroyForcibly();
+                throw new IOException("worker for " + file + " did not start");
+            }
+            try {
+                socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(line.substring(6).trim()));
+                socket.setSoTimeout(timeoutMillis);
+            } catch (IOException | RuntimeException e) {
+                process.destroyForcibly();
+                throw new IOException("could not connect to the worker for " + file, e);
+            }
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Asks the worker for its partial counts, restarting it once if it is dead or stalled
+         * @throws IllegalArgumentException if the worker could not answer the request
+         */
+        synchronized int[] query(QueryType type, int arg1, int arg2) throws IOException {
+            try {
+                return send(type, arg1, arg2);
+            } catch (IOException e) {
+                stop();
+                start();
+                return send(type, arg1, arg2);
+            }
+        }
+
+        private int[] send(QueryType type, int arg1, int arg2) throws IOException {
+            if (out == null) {
+                throw new IOException("worker for " + file + " is not running"); // a restart failed before
+            }
+            out.writeInt(type.ordinal());
+            out.writeInt(arg1);
+            out.writeInt(arg2);
+            out.flush();
+            int[] counts = {in.readInt(), in.readInt(), in.readInt()};
+            if (counts[0] == ShardWorker.ERROR) {
+                throw new IllegalArgumentException("worker for " + file + " could not answer " + type.getMethod()
+                        + "(" + arg1 + ", " + arg2 + ")");
+            }
+            return counts;
+        }
+
+        /**
+         * Asks the worker to stop and kills it. Safe to call when start failed part way.
+         */
+        synchronized void stop() {
+            try {
+                if (out != null) {
+                    out.writeInt(ShardWorker.SHUTDOWN);
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // already dead
+            }
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // already closed
+            }
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            out = null;
+            in = null;
+            socket = null;
+        }
+    }
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final ExecutorService fanOut;
+
+    /**
+     * Splits a data file into shards and starts a worker for each
+     * @param dataFile a plain or gzip compressed data file
+     * @param shardCount how many workers to start
+     * @param shardDir where to write the shard files
+     * @throws IOException
+     */
+    public ShardCoordinator(File dataFile, int shardCount, File shardDir) throws IOException {
+        this(split(dataFile, shardCount, shardDir));
+    }
+
+    /**
+     * Starts a worker for each shard file
+     * @param shardFiles the files of the shards
+     * @throws IOException
+     */
+    public ShardCoordinator(List<File> shardFiles) throws IOException {
+        this(shardFiles, "ShardWorker", TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Starts a worker for each shard file, so that tests can start workers that fail
+     * @param shardFiles the files of the shards
+     * @param workerClass main class of the workers, which speaks the protocol of ShardWorker
+     * @param timeoutMillis how long a worker may take to answer before it is treated as dead
+     * @throws IOException
+     */
+    ShardCoordinator(List<File> shardFiles, String workerClass, int timeoutMillis) throws IOException {
+        this.workerClass = workerClass;
+        this.timeoutMillis = timeoutMillis;
+        fanOut = Executors.newFixedThreadPool(shardFiles.size(), runnable -> {
+            Thread thread = new Thread(runnable, "shard query");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (File file : shardFiles) {
+                Shard shard = new Shard(file);
+                shard.start();
+                shards.add(shard);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Splits a data file into shard files, sending users to the shards in turn
+     * @param dataFile a plain or gzip compressed data file
+     * @param shardCount how many shards to make
+     * @param shardDir where to write the shard files
+     * @return the shard files
+     * @throws IOException
+     */
+    public static List<File> split(File dataFile, int shardCount, File shardDir) throws IOException {
+        List<File> files = new ArrayList<File>();
+        Writer[] writers = new Writer[shardCount];
+        BufferedReader reader = new BufferedReader(new InputStreamReader(PipelinedLoader.open(dataFile)));
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                File file = new File(shardDir, "shard-" + i + ".txt");
+                files.add(file);
+                writers[i] = new BufferedWriter(new FileWriter(file), 1 << 16);
+            }
+            String line;
+            int user = 0;
+            while ((line = reader.readLine()) != null) {
+                writers[user % shardCount].write(line);
+                writers[user % shardCount].write('\n');
+                user++;
+            }
+        } finally {
+            reader.close();
+            for (Writer writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * The worker process of a shard, so that tests can kill it
+     */
+    Process getProcess(int shard) {
+        return shards.get(shard).process;
+    }
+
+    /**
+     * Sends a query to every worker at once and adds up their counts
+     * @param type the query
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @return the query's result, or its error value if a shard could not answer
+     */
+    public Object query(QueryType type, int arg1, int arg2) {
+        List<Future<int[]>> partials = new ArrayList<Future<int[]>>();
+        for (Shard shard : shards) {
+            partials.add(fanOut.submit(() -> shard.query(type, arg1, arg2)));
+        }
+        long users = 0;
+        long count1 = 0;
+        long count2 = 0;
+        try {
+            for (Future<int[]> partial : partials) {
+                int[] counts = partial.get();
+                users += counts[0];
+                count1 += counts[1];
+                count2 += counts[2];
+            }
+        } catch (Exception e) {
+            return type.errorResult();
+        }
+        switch (type) {
+            case COUNT:
+                return count1 > arg1;
+            case PERCENTAGE:
+                return ((float) count1 / (float) users) * 100;
+            case COMPARISON:
+                return count1 > count2;
+            case THRESHOLD:
+            case COMPARE_COUNT:
+                return (int) count1;
+            default:
+                return (float) count1 * 100 / (float) users;
+        }
+    }
+
+    /**
+     * Sharded version of Data.countQuery
+     */
+    public boolean countQuery(int userThreshold, int category) {
+        return (Boolean) query(QueryType.COUNT, userThreshold, category);
+    }
+
+    /**
+     * Sharded version of Data.percentageCountQuery
+     */
+    public float percentageCountQuery(int category) {
+        return (Float) query(QueryType.PERCENTAGE, category, 0);
+    }
+
+    /**
+     * Sharded version of Data.comparisonQuery
+     */
+    public boolean comparisonQuery(int category1, int category2) {
+        return (Boolean) query(QueryType.COMPARISON, category1, category2);
+    }
+
+    /**
+     * Sharded version of Data.countThresholdQuery
+     */
+    public int countThresholdQuery(int threshold, int category) {
+        return (Integer) query(QueryType.THRESHOLD, threshold, category);
+    }
+
+    /**
+     * Sharded version of Data.comparePercentageQuery
+     */
+    public float comparePercentageQuery(int category1, int category2) {
+        return (Float) query(QueryType.COMPARE_PERCENTAGE, category1, category2);
+    }
+
+    /**
+     * Stops every worker
+     */
+    public void close() {
+        for (Shard shard : shards) {
+            shard.stop();
+        }
+        fanOut.shutdownNow();
+    }
+}
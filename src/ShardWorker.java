@@ -0,0 +1,136 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A worker process of the sharded mode. It loads one shard of the dataset into its own Data and answers the partial
+ * counts of queries sent by a ShardCoordinator over a local socket.
+ *
+ * Once the shard is loaded the worker prints "ready PORT" on stdout. Each request is three ints: the ordinal of the
+ * QueryType and its two arguments. The reply is three ints: how many users the shard has and up to two counts, which
+ * the coordinator adds to the counts of the other shards (see partialCounts). A request with a negative type stops
+ * the worker. A request that can't be answered, such as an unknown type or a category out of range, gets a reply
+ * whose user count is ERROR.
+ *
+ * Usage: java ShardWorker shardFile [port]
+ *
+ * @author Robert Bofinger, Preston Mackert
+ *
+ */
+
+public class ShardWorker {
+
+    public static final int CATEGORIES = 17;
+    public static final int SHUTDOWN = -1;
+    public static final int ERROR = -1; // the user count of the reply to a request that could not be answered
+
+    private final Data data;
+
+    /**
+     * Creates a worker for a loaded shard
+     * @param data the shard's data
+     */
+    public ShardWorker(Data data) {
+        this.data = data;
+    }
+
+    /**
+     * Works out the counts of a query over this shard that add up across shards
+     * @param type the query
+     * @param arg1 first argument of the query
+     * @param arg2 second argument of the query
+     * @return users in the shard, then the counts that the coordinator merges
+     * @throws IllegalArgumentException if a category argument is out of range
+     */
+    public int[] partialCounts(QueryType type, int arg1, int arg2) {
+        type.checkCategories(arg1, arg2, data.getCategories());
+        int users = data.getTotalUsers();
+        switch (type) {
+            case COUNT:
+                return new int[] {users, data.countThresholdQuery(1, arg2), 0};
+            case PERCENTAGE:
+                return new int[] {users, data.countThresholdQuery(1, arg1), 0};
+            case COMPARISON:
+                return new int[] {users, data.countThresholdQuery(1, arg1), data.countThresholdQuery(1, arg2)};
+            case THRESHOLD:
+                return new int[] {users, data.countThresholdQuery(arg1, arg2), 0};
+            default:
+                return new int[] {users, data.compareCountQuery(arg1, arg2), 0};
+        }
+    }
+
+    /**
+     * Answers requests from one coordinator until it disconnects or asks the worker to stop
+     * @param socket the coordinator's connection
+     * @return false if the worker was asked to stop
+     * @throws IOException
+     */
+    private boolean serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (true) {
+            int type;
+            try {
+                type = in.readInt();
+            } catch (EOFException e) {
+                return true; // coordinator went away, wait for the next one
+            }
+            int arg1 = in.readInt();
+            int arg2 = in.readInt();
+            if (type < 0) {
+                return false;
+            }
+            int[] counts;
+            try {
+                if (type >= QueryType.values().length) {
+                    throw new IllegalArgumentException("unknown query type " + type);
+                }
+                counts = partialCounts(QueryType.values()[type], arg1, arg2);
+            } catch (RuntimeException e) {
+                counts = new int[] {ERROR, 0, 0}; // a bad request, the worker carries on
+            }
+            for (int count : counts) {
+                out.writeInt(count);
+            }
+            out.flush();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java ShardWorker shardFile [port]");
+            System.exit(2);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+        Data data = new Data(0, CATEGORIES);
+        data.loadData(new File(args[0]));
+        run(new ShardWorker(data), port);
+    }
+
+    /**
+     * Prints "ready PORT" and answers coordinators until one asks the worker to stop
+     * @param worker the worker of a loaded shard
+     * @param port the port to listen on, 0 for any free port
+     * @throws IOException
+     */
+    static void run(ShardWorker worker, int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+        System.out.println("ready " + server.getLocalPort());
+        System.out.flush();
+
+        boolean running = true;
+        while (running) {
+            Socket socket = server.accept();
+            try {
+                running = worker.serve(socket);
+            } catch (IOException e) {
+                // a broken connection only ends that coordinator's session
+            } finally {
+                socket.close();
+            }
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a workload captured with QueryLog against a loaded dataset, to check a release against the queries real
+ * users ran. Queries are started at their recorded times divided by a speedup (or back to back with a speedup of 0) on
+ * a fixed number of threads. The report gives the latency percentiles and every query whose result differs from the
+ * recorded one or that failed. Only the queries that QueryLog records are replayed, the six of QueryType over every
+ * user.
+ *
+ * Latency is measured from when the query was due to start, so a replay that falls behind shows it in the latencies
+ * instead of hiding it. The service time, from when the query actually started, is reported as well.
+ *
+ * Usage: java WorkloadReplay dataFile logFile [speedup] [threads]
+ * Exits with 1 if any result differs.
+ *
+ * @author Robert Bofinger, Preston Mackert
+ *
+ */
+
+public class WorkloadReplay {
+
+    /**
+     * The outcome of a replay
+     */
+    public static class Report {
+        private final long[] latencies;
+        private final long[] serviceTimes;
+        private final List<String> differences;
+        private final long wallNanos;
+
+        Report(long[] latencies, long[] serviceTimes, List<String> differences, long wallNanos) {
+            this.latencies = latencies;
+            this.serviceTimes = serviceTimes;
+            this.differences = differences;
+            this.wallNanos = wallNanos;
+            Arrays.sort(latencies);
+            Arrays.sort(serviceTimes);
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return the latency, from when the query was due, below which that percent of queries finished
+         */
+        public long latencyPercentile(double percentile) {
+            return percentile(latencies, percentile);
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return the service time below which that percent of queries finished
+         */
+        public long serviceTimePercentile(double percentile) {
+            return percentile(serviceTimes, percentile);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        /**
+         * @return a description of every query whose result differed from the recorded one
+         */
+        public List<String> getDifferences() {
+            return differences;
+        }
+
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("%d queries in %.3f s, %d differences%n", latencies.length, wallNanos / 1e9,
+                    differences.size()));
+            text.append(String.format("%-8s %12s %12s%n", "", "latency us", "service us"));
+            for (double p : new double[] {50, 90, 99, 99.9, 100}) {
+                text.append(String.format("p%-7s %12.1f %12.1f%n", p == 100 ? "max" : String.valueOf(p),
+                        latencyPercentile(p) / 1000.0, serviceTimePercentile(p) / 1000.0));
+            }
+            for (String difference : differences.subList(0, Math.min(20, differences.size()))) {
+                text.append(difference).append(String.format("%n"));
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Replays a workload
+     * @param data the dataset to run the queries against
+     * @param entries the recorded queries, in start order
+     * @param speedup how many times faster than recorded to start the queries, 0 to start them as fast as possible
+     * @param threads how many queries may run at once
+     * @return the latencies and the differences
+     * @throws InterruptedException
+     */
+    public static Report replay(Data data, List<QueryLog.Entry> entries, double speedup, int threads)
+            throws InterruptedException {
+        int count = entries.size();
+        long[] latencies = new long[count];
+        long[] serviceTimes = new long[count];
+        List<String> differences = new ArrayList<String>();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long origin = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    QueryLog.Entry entry = entries.get(i);
+                    long due = origin;
+                    if (speedup > 0) {
+                        due += (long) (entry.getStartNanos() / speedup);
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    long start = System.nanoTime();
+                    double result;
+                    String failure = null;
+                    try {
+                        result = data.explain(entry.getType(), entry.getArg1(), entry.getArg2()).getValue();
+                    } catch (RuntimeException e) {
+                        result = Double.NaN;
+                        failure = e.toString(); // reported below, the thread goes on with the next entry
+                    }
+                    long end = System.nanoTime();
+                    serviceTimes[i] = end - start;
+                    latencies[i] = end - (speedup > 0 ? due : start); // back to back, every query is due when taken
+                    if (failure != null) {
+                        synchronized (differences) {
+                            differences.add(String.format("query %d %s(%d, %d): recorded %s, failed with %s", i,
+                                    entry.getType().getMethod(), entry.getArg1(), entry.getArg2(),
+                                    entry.getResult(), failure));
+                        }
+                    } else if (Double.compare(result, entry.getResult()) != 0) {
+                        synchronized (differences) {
+                            differences.add(String.format("query %d %s(%d, %d): recorded %s, replayed %s", i,
+                                    entry.getType().getMethod(), entry.getArg1(), entry.getArg2(),
+                                    entry.getResult(), result));
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return new Report(latencies, serviceTimes, differences, System.nanoTime() - origin);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: java WorkloadReplay dataFile logFile [speedup] [threads]");
+            System.exit(2);
+        }
+        double speedup = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Data data = new Data(0, 17);
+        data.loadData(new File(args[0]));
+        List<QueryLog.Entry> entries = QueryLog.read(new File(args[1]));
+
+        Report report = replay(data, entries, speedup, threads);
+        System.out.print(report);
+        System.exit(report.getDifferences().isEmpty() ? 0 : 1);
+    }
+}
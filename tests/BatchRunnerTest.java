@@ -0,0 +1,105 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for running a batch of queries with BatchRunner and reading its CSV and JSON lines output.
+ *
+ * @author Robert Bofinger
+ * @author Preston Mackert
+ *
+ */
+
+public class BatchRunnerTest {
+
+    private static final String QUERIES = "# nightly report\n"
+            + "countThresholdQuery 2 1\n"
+            + "\n"
+            + "PERCENTAGE 3\n"
+            + "comparisonQuery 0 1 @heavy\n"
+            + "countQuery 5\n"
+            + "compareCountQuery 0 17\n"
+            + "countQuery 5 0 @missing\n";
+
+    /**
+     * Runs the queries and returns the output rows by line number of their query
+     */
+    private Map<Integer, String> run(Data data, BatchRunner.Format format, int[] failures) throws Exception {
+        StringWriter out = new StringWriter();
+        failures[0] = new BatchRunner(data, format, 3).run(new BufferedReader(new StringReader(QUERIES)), out);
+        Map<Integer, String> rows = new HashMap<Integer, String>();
+        String[] lines = out.toString().split("\n");
+        for (int i = format == BatchRunner.Format.CSV ? 1 : 0; i < lines.length; i++) {
+            String line = lines[i];
+            int number = Integer.parseInt(format == BatchRunner.Format.CSV ? line.substring(0, line.indexOf(','))
+                    : line.substring(8, line.indexOf(',')));
+            assertNull("one row per query", rows.put(number, line));
+        }
+        if (format == BatchRunner.Format.CSV) {
+            assertTrue(lines[0].startsWith("line,query,"));
+        }
+        return rows;
+    }
+
+    @org.junit.Test
+    public void testCsvAndJson() throws Exception {
+        Data data = new Data(62, 17);
+        data.loadData(new File("testdatafile.txt"));
+        data.defineSegment("heavy", 0, 2);
+        int[] failures = new int[1];
+
+        Map<Integer, String> csv = run(data, BatchRunner.Format.CSV, failures);
+        assertEquals(6, csv.size());
+        assertEquals(3, failures[0]);
+        assertTrue(csv.get(2).startsWith("2,countThresholdQuery,2,1,," + data.countThresholdQuery(2, 1) + ","));
+        assertTrue(csv.get(4).startsWith("4,percentageCountQuery,3,0,," + data.percentageCountQuery(3) + ","));
+        assertTrue(csv.get(5).startsWith("5,comparisonQuery,0,1,heavy," + data.comparisonQuery("heavy", 0, 1)
+                + ",SCAN,"));
+        assertEquals("6,,,,,,,,,\"countQuery takes 2 arguments, not 1\"", csv.get(6));
+        assertEquals("7,,,,,,,,,category 17 is out of range 0-16", csv.get(7));
+        assertTrue(csv.get(8).startsWith("8,,,,,,,,,"));
+        assertEquals(10, csv.get(2).split(",", -1).length);
+
+        Map<Integer, String> json = run(data, BatchRunner.Format.JSON, failures);
+        assertEquals(6, json.size());
+        assertEquals(3, failures[0]);
+        assertTrue(json.get(2).startsWith("{\"line\":2,\"query\":\"countThresholdQuery\",\"arg1\":2,\"arg2\":1,"
+                + "\"segment\":null,\"result\":" + data.countThresholdQuery(2, 1) + ",\"path\":\""));
+        assertTrue(json.get(5).contains("\"segment\":\"heavy\""));
+        assertEquals("{\"line\":6,\"error\":\"countQuery takes 2 arguments, not 1\"}", json.get(6));
+    }
+
+    @org.junit.Test
+    public void testCategoriesOfTheDataset() throws Exception {
+        Data data = new Data(62, 17);
+        data.loadData(new File("testdatafile.txt"));
+        BatchRunner.defineSegment(data, "heavy:16:1");
+        assertEquals(16, data.getSegment("heavy").getCategory());
+        for (String option : new String[] {"big:17:1", "big:-1:1", "big:0:-1", "big:x:1", "big:0", ":0:1"}) {
+            try {
+                BatchRunner.defineSegment(data, option);
+                fail("defined --segment " + option);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertNull(data.getSegment("big"));
+
+        // queries are checked against how many categories the dataset has
+        assertEquals(3, BatchRunner.parse(1, "countQuery 1 3", 4).arg2);
+        try {
+            BatchRunner.parse(1, "countQuery 1 4", 4);
+            fail("category 4 of 4");
+        } catch (IllegalArgumentException e) {
+            assertEquals("category 4 is out of range 0-3", e.getMessage());
+        }
+    }
+
+    @org.junit.Test
+    public void testEscaping() {
+        assertEquals("\"a \\\"b\\\"\\\\\\u000a\"", BatchRunner.json("a \"b\"\\\n"));
+        assertEquals("plain", BatchRunner.csv("plain"));
+        assertEquals("\"a,\"\"b\"\"\"", BatchRunner.csv("a,\"b\""));
+    }
+}
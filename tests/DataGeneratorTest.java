@@ -0,0 +1,45 @@
+import java.io.*;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for the synthetic data generator, it checks that the output only depends on the seed and that the data
+ * can be loaded and looks like the real file.
+ *
+ * @author Robert Bofinger
+ * @author Preston Mackert
+ *
+ */
+
+public class DataGeneratorTest {
+
+    private byte[] generate(long users, long seed, int threads) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DataGenerator().generate(out, users, seed, threads);
+        return out.toByteArray();
+    }
+
+    @org.junit.Test
+    public void testReproducible() throws Exception {
+        byte[] one = generate(150000, 7, 1);
+        assertArrayEquals(one, generate(150000, 7, 4));
+        assertFalse(Arrays.equals(one, generate(150000, 8, 4)));
+    }
+
+    @org.junit.Test
+    public void testLoadGenerated() throws Exception {
+        File file = File.createTempFile("generated", ".txt");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        new DataGenerator().generate(out, 100000, 1, 2);
+        out.close();
+
+        Data data = new Data(100000, 17);
+        data.loadData(file);
+        assertEquals(100000, data.getUsersProcessed());
+        // front page is the most visited category, as in the real data
+        for (int category = 1; category < 17; category++) {
+            assertTrue(data.comparisonQuery(0, category));
+        }
+    }
+}
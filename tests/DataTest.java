@@ -1,5 +1,11 @@
 import org.junit.Before;
-import java.io.File;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
 import static org.junit.Assert.*;
 
 /**
@@ -52,4 +58,553 @@ public class DataTest {
         assertEquals(13f/62f * 100, data.comparePercentageQuery(5, 8), 0.0f);
     }
 
-}
\ No newline at end of file
+    @org.junit.Test
+    public void testAppendData() throws Exception {
+        // appending the same file again doubles every count but keeps the percentages
+        assertEquals(62, data.appendData(new File("testdatafile.txt")));
+        assertEquals(124, data.getTotalUsers());
+        assertEquals(124, data.getUsersProcessed());
+        assertEquals(4, data.countThresholdQuery(5, 0));
+        assertEquals(12f / 62f * 100, data.percentageCountQuery(0), 0.0001f);
+        assertEquals(13f / 62f * 100, data.comparePercentageQuery(5, 8), 0.0001f);
+    }
+
+    @org.junit.Test
+    public void testAggregatesMatchScan() throws Exception {
+        Data scanned = new Data(62, 17, false);
+        scanned.loadData(new File("testdatafile.txt"));
+        data.appendData(new File("testdatafile.txt"));
+        scanned.appendData(new File("testdatafile.txt"));
+        for (int category = 0; category < 17; category++) {
+            for (int threshold = 0; threshold < 10; threshold++) {
+                assertEquals(scanned.countThresholdQuery(threshold, category), data.countThresholdQuery(threshold, category));
+            }
+            for (int other = 0; other < 17; other++) {
+                assertEquals(scanned.comparePercentageQuery(category, other),
+                        data.comparePercentageQuery(category, other), 0.0001f);
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testCategoryOutOfRange() throws Exception {
+        Data counted = new Data(62, 17, false); // answers from the ingest counters instead of the aggregates
+        counted.loadData(new File("testdatafile.txt"));
+        for (Data checked : new Data[] {data, counted}) {
+            for (int category : new int[] {17, -1}) {
+                try {
+                    checked.countThresholdQuery(1, category);
+                    fail("countThresholdQuery of category " + category);
+                } catch (IllegalArgumentException e) {
+                    assertEquals("category " + category + " is out of range 0-16", e.getMessage());
+                }
+                try {
+                    checked.percentageCountQuery(category);
+                    fail("percentageCountQuery of category " + category);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+                try {
+                    checked.comparisonQuery(0, category);
+                    fail("comparisonQuery of category " + category);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+            assertEquals(62, checked.countThresholdQuery(-1, 0)); // a threshold is not a category
+        }
+    }
+
+    @org.junit.Test
+    public void testExplain() throws Exception {
+        QueryPlanner.Plan plan = data.explain(QueryType.THRESHOLD, 5, 0);
+        assertEquals(QueryPlanner.Path.HISTOGRAM, plan.getPath());
+        assertEquals(2, plan.getResult());
+        assertTrue(plan.getActualNanos() >= 0);
+        assertEquals(QueryPlanner.Path.COUNTER, data.explain(QueryType.COMPARE_PERCENTAGE, 5, 8).getPath());
+
+        Data scanned = new Data(62, 17, false);
+        scanned.loadData(new File("testdatafile.txt"));
+        plan = scanned.explain(QueryType.COMPARE_PERCENTAGE, 5, 8);
+        assertEquals(QueryPlanner.Path.SCAN, plan.getPath());
+        assertEquals(13f / 62f * 100, (Float) plan.getResult(), 0.0001f);
+        assertTrue(plan.toString().startsWith("comparePercentageQuery(5, 8): SCAN"));
+    }
+
+    @org.junit.Test
+    public void testIngestCounters() throws Exception {
+        long views = 0;
+        for (String line : Files.readAllLines(new File("testdatafile.txt").toPath())) {
+            views += line.trim().split(" +").length;
+        }
+        IngestCounters.Snapshot counts = data.liveCounts();
+        assertEquals(62, counts.getUsers());
+        assertEquals(12, counts.getVisitors(0));
+        long counted = 0;
+        for (int category = 0; category < 17; category++) {
+            counted += counts.getViews(category);
+        }
+        assertEquals(views, counted);
+
+        // visitor counts need no scan even without the aggregates
+        Data scanned = new Data(62, 17, false);
+        scanned.loadData(new File("testdatafile.txt"));
+        QueryPlanner.Plan plan = scanned.explain(QueryType.PERCENTAGE, 0, 0);
+        assertEquals(QueryPlanner.Path.COUNTER, plan.getPath());
+        assertEquals(12f / 62f * 100, (Float) plan.getResult(), 0.0001f);
+
+        // a failed load leaves the counters matching the stored users
+        File bad = File.createTempFile("baddata", ".txt");
+        bad.deleteOnExit();
+        Files.write(bad.toPath(), "1 2\n3\nx\n".getBytes());
+        Data failed = new Data(0, 17);
+        try {
+            failed.loadData(bad);
+            fail("loaded a malformed file");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(failed.getUsersProcessed(), failed.liveCounts().getUsers());
+    }
+
+    @org.junit.Test
+    public void testFootprint() throws Exception {
+        MemoryFootprint footprint = data.footprint();
+        assertEquals(MemoryFootprint.Layout.BYTE_CELLS, footprint.getBestLayout());
+        // the load already moved the cells to one byte each
+        assertEquals(footprint.getPredictedBytes(MemoryFootprint.Layout.BYTE_CELLS), footprint.getStorageBytes());
+        assertTrue(footprint.getPredictedBytes(MemoryFootprint.Layout.INT_ROWS) > 4 * footprint.getStorageBytes());
+        assertEquals(12.0 / 62, footprint.getDensity(0), 1e-9);
+        assertTrue(footprint.getTotalBytes() > footprint.getStorageBytes());
+        assertFalse("already compact", data.compact());
+
+        // appended users keep the current layout until compact() is called
+        Data appended = new Data(62, 17);
+        appended.appendData(new File("testdatafile.txt"));
+        long intRows = appended.footprint().getStorageBytes();
+        assertEquals(appended.footprint().getPredictedBytes(MemoryFootprint.Layout.INT_ROWS), intRows);
+        assertTrue(appended.compact());
+        assertTrue(appended.footprint().getStorageBytes() < intRows / 3);
+        for (int category = 0; category < 17; category++) {
+            assertEquals(data.countQuery(1, category), appended.countQuery(1, category));
+            assertEquals(data.countThresholdQuery(2, category), appended.countThresholdQuery(2, category));
+        }
+
+        // a count that doesn't fit in a byte widens every cell
+        PackedDataArray cells = PackedDataArray.copyOf(new DataArray(3, 2), 1);
+        cells.setCategory(0, 1, 7);
+        cells.setCategory(2, 0, 300);
+        cells.addUsers(1);
+        cells.setCategory(3, 1, 70000);
+        assertEquals(4, cells.getWidth());
+        assertEquals(7, cells.getCategory(0, 1));
+        assertEquals(300, cells.getCategory(2, 0));
+        assertEquals(70000, cells.getCategory(3, 1));
+        // a category past the last one doesn't reach into the next user's cells
+        for (int[] bad : new int[][] {{0, 2}, {1, -1}, {4, 0}}) {
+            try {
+                cells.getCategory(bad[0], bad[1]);
+                fail("read user " + bad[0] + ", category " + bad[1]);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // expected
+            }
+            try {
+                cells.setCategory(bad[0], bad[1], 1);
+                fail("wrote user " + bad[0] + ", category " + bad[1]);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+        assertEquals(0, cells.getCategory(1, 0));
+        assertEquals(0, cells.getCategory(3, 0));
+    }
+
+    /**
+     * Reads the visit counts of every user of a data file, to check queries against
+     */
+    private static List<int[]> readUsers(File file) throws IOException {
+        List<int[]> users = new ArrayList<int[]>();
+        for (String line : Files.readAllLines(file.toPath())) {
+            int[] counts = new int[17];
+            for (String page : line.trim().split(" +")) {
+                counts[Integer.parseInt(page) - 1]++;
+            }
+            users.add(counts);
+        }
+        return users;
+    }
+
+    /**
+     * Checks every query limited to a segment against counting the segment's users directly
+     */
+    private static void checkSegment(Data data, List<int[]> users, String name, int category, int minViews) {
+        List<int[]> members = new ArrayList<int[]>();
+        for (int[] user : users) {
+            if (user[category] >= minViews) {
+                members.add(user);
+            }
+        }
+        assertEquals(members.size(), data.getSegment(name).size());
+        for (int a = 0; a < 17; a += 3) {
+            int b = (a + 5) % 17;
+            int visitors = 0;
+            int atLeast2 = 0;
+            int greater = 0;
+            int visitorsB = 0;
+            for (int[] user : members) {
+                visitors += user[a] > 0 ? 1 : 0;
+                visitorsB += user[b] > 0 ? 1 : 0;
+                atLeast2 += user[a] >= 2 ? 1 : 0;
+                greater += user[a] > user[b] ? 1 : 0;
+            }
+            assertEquals(visitors > 10, data.countQuery(name, 10, a));
+            assertEquals((float) visitors / members.size() * 100, data.percentageCountQuery(name, a), 0.0001f);
+            assertEquals(visitors > visitorsB, data.comparisonQuery(name, a, b));
+            assertEquals(atLeast2, data.countThresholdQuery(name, 2, a));
+            assertEquals(greater, data.compareCountQuery(name, a, b));
+            assertEquals((float) greater * 100 / members.size(), data.comparePercentageQuery(name, a, b), 0.0001f);
+        }
+    }
+
+    @org.junit.Test
+    public void testSegments() throws Exception {
+        List<int[]> users = readUsers(new File("testdatafile.txt"));
+        Segment heavy = data.defineSegment("front page regulars", 0, 2);
+        checkSegment(data, users, "front page regulars", 0, 2);
+        QueryPlanner.Plan plan = data.explain("front page regulars", QueryType.THRESHOLD, 5, 0);
+        assertEquals(QueryPlanner.Path.SCAN, plan.getPath());
+        assertEquals(heavy.size(), plan.getEstimatedRows());
+        assertTrue(plan.toString().startsWith("countThresholdQuery(5, 0) in front page regulars: SCAN"));
+
+        // appended users join the segment the next time it is used
+        data.appendData(new File("testdatafile.txt"));
+        users.addAll(readUsers(new File("testdatafile.txt")));
+        checkSegment(data, users, "front page regulars", 0, 2);
+
+        // a large segment is a bitmap scanned on the worker threads
+        File file = File.createTempFile("generated", ".txt");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        new DataGenerator().generate(out, 100000, 3, 2);
+        out.close();
+        Data generated = new Data(0, 17);
+        generated.loadData(file);
+        Segment front = generated.defineSegment("front page", 0, 1);
+        assertTrue(front.isBitmap());
+        assertTrue(front.size() > QueryPlanner.SMALL_SEGMENT);
+        List<int[]> generatedUsers = readUsers(file);
+        checkSegment(generated, generatedUsers, "front page", 0, 1);
+        assertFalse(generated.defineSegment("front page addicts", 0, 12).isBitmap());
+        checkSegment(generated, generatedUsers, "front page addicts", 0, 12);
+
+        data.dropSegment("front page regulars");
+        assertNull(data.getSegment("front page regulars"));
+        try {
+            data.countQuery("front page regulars", 1, 0);
+            fail("queried a dropped segment");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // a segment is only defined for a category the dataset has
+        assertEquals(17, data.getCategories());
+        for (int[] bad : new int[][] {{17, 1}, {-1, 1}, {0, -1}}) {
+            try {
+                data.defineSegment("bad", bad[0], bad[1]);
+                fail("defined a segment of category " + bad[0] + " with " + bad[1] + " views");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertNull(data.getSegment("bad"));
+
+        // percentages of an empty segment are 0
+        assertEquals(0, data.defineSegment("nobody", 0, Integer.MAX_VALUE).size());
+        assertEquals(0, data.percentageCountQuery("nobody", 0), 0);
+        assertEquals(0, data.comparePercentageQuery("nobody", 0, 1), 0);
+    }
+
+    @org.junit.Test
+    public void testQuantiles() throws Exception {
+        List<int[]> users = readUsers(new File("testdatafile.txt"));
+        Data scanned = new Data(62, 17, false);
+        scanned.loadData(new File("testdatafile.txt"));
+        int[] totals = new int[users.size()];
+        for (int i = 0; i < totals.length; i++) {
+            for (int views : users.get(i)) {
+                totals[i] += views;
+            }
+        }
+        Arrays.sort(totals);
+        for (double q : new double[] {0, 0.25, 0.5, 0.9, 0.99, 1}) {
+            int rank = Math.max(1, (int) Math.ceil(q * users.size())) - 1;
+            for (int category = 0; category < 17; category++) {
+                int[] visits = new int[users.size()];
+                for (int i = 0; i < visits.length; i++) {
+                    visits[i] = users.get(i)[category];
+                }
+                Arrays.sort(visits);
+                assertEquals(visits[rank], data.visitQuantile(category, q));
+                assertEquals(visits[rank], scanned.visitQuantile(category, q));
+                assertEquals(visits[rank], data.approximateVisitQuantile(category, q)); // exact for small counts
+            }
+            assertEquals(totals[rank], data.totalViewsQuantile(q));
+            assertEquals(totals[rank], data.approximateTotalViewsQuantile(q));
+        }
+
+        // rows that were never loaded count as users without visits, in the sketches too
+        Data padded = new Data(100, 17);
+        padded.loadData(new File("testdatafile.txt"));
+        for (int category = 0; category < 17; category++) {
+            assertEquals(padded.visitQuantile(category, 0.9), padded.approximateVisitQuantile(category, 0.9));
+        }
+        assertEquals(padded.totalViewsQuantile(0.5), padded.approximateTotalViewsQuantile(0.5));
+
+        // sketches merge into the sketch of both datasets, and stay within 1% for large counts
+        QuantileSketch merged = data.getSketch(17);
+        merged.merge(scanned.getSketch(17));
+        assertEquals(124, merged.getCount());
+        assertEquals(totals[30], merged.quantile(0.5));
+        QuantileSketch large = new QuantileSketch();
+        for (int value = 1; value <= 100000; value++) {
+            large.add(value);
+        }
+        assertEquals(50000, large.quantile(0.5), 500);
+        assertEquals(99000, large.quantile(0.99), 990);
+    }
+
+    @org.junit.Test
+    public void testLoadGzipData() throws Exception {
+        File gzip = File.createTempFile("testdatafile", ".txt.gz");
+        gzip.deleteOnExit();
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip));
+        Files.copy(new File("testdatafile.txt").toPath(), out);
+        out.close();
+
+        Data compressed = new Data(62, 17);
+        compressed.loadData(gzip);
+        for (int category = 0; category < 17; category++) {
+            assertEquals(data.countThresholdQuery(1, category), compressed.countThresholdQuery(1, category));
+            assertEquals(data.comparePercentageQuery(category, 0), compressed.comparePercentageQuery(category, 0), 0.0f);
+        }
+    }
+
+    @org.junit.Test
+    public void testQuarantine() throws Exception {
+        File file = File.createTempFile("baddatafile", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "1 2\nx\n3\n99 1\n".getBytes());
+        File quarantine = File.createTempFile("quarantine", ".txt");
+        quarantine.deleteOnExit();
+
+        Data skipping = new Data(4, 17);
+        LoadReport report = skipping.loadData(file, 2, quarantine);
+        assertEquals(2, report.getSkipped());
+        assertEquals(2, skipping.getUsersProcessed());
+        assertEquals("x\n99 1\n", new String(Files.readAllBytes(quarantine.toPath())));
+
+        // a quarantine that can't be written doesn't hide why the load failed
+        File full = new File("/dev/full");
+        org.junit.Assume.assumeTrue(full.exists());
+        try {
+            new Data(4, 17).loadData(file, 1, full);
+            fail("the second bad line is over the budget");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("more than 1 bad lines, line 4"));
+            assertEquals(1, e.getSuppressed().length);
+        }
+        try {
+            new Data(4, 17).loadData(file, 2, full);
+            fail("the quarantine never reached the disk");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @org.junit.Test
+    public void testDistributions() throws Exception {
+        int[] visits = data.visitDistribution(0);
+        assertEquals(50, visits[0]);
+        int atLeastFive = 0;
+        for (int v = 5; v < visits.length; v++) {
+            atLeastFive += visits[v];
+        }
+        assertEquals(data.countThresholdQuery(5, 0), atLeastFive);
+
+        int[] distinct = data.distinctCategoriesDistribution();
+        int[] total = data.totalViewsDistribution();
+        int[][] grouped = data.distinctCategoriesByTopCategory();
+        int users = 0;
+        int groupedUsers = 0;
+        for (int n = 0; n < distinct.length; n++) {
+            users += distinct[n];
+            int byTop = 0;
+            for (int top = 0; top < 17; top++) {
+                byTop += grouped[top][n];
+            }
+            groupedUsers += byTop;
+            if (n > 0) {
+                assertEquals(distinct[n], byTop);
+            }
+        }
+        assertEquals(62, users);
+        assertEquals(62, groupedUsers);
+        assertEquals(0, total[0]);
+    }
+
+    @org.junit.Test
+    public void testAsyncQueries() throws Exception {
+        assertEquals(true, data.countQueryAsync(3, 1).get());
+        assertEquals(12f / 62f * 100, data.percentageCountQueryAsync(0).get(), 0.0001f);
+        assertEquals(true, data.comparisonQueryAsync(0, 3).get());
+        assertEquals(2, (int) data.countThresholdQueryAsync(5, 0).get());
+        assertEquals(13f / 62f * 100, data.comparePercentageQueryAsync(5, 8).get(), 0.0001f);
+        assertEquals(13f / 62f * 100 + " " + data.comparisonQuery(5, 8),
+                data.compareAsync(5, 8, (percentage, more) -> percentage + " " + more).get());
+    }
+
+    @org.junit.Test
+    public void testCoOccurrence() throws Exception {
+        CoOccurrence matrix = data.coOccurrence();
+        List<int[]> users = readUsers(new File("testdatafile.txt"));
+        for (int a = 0; a < 17; a++) {
+            for (int b = 0; b < 17; b++) {
+                int joint = 0;
+                for (int[] user : users) {
+                    if (user[a] > 0 && user[b] > 0) {
+                        joint++;
+                    }
+                }
+                assertEquals(joint, matrix.jointVisitors(a, b));
+            }
+        }
+        for (int a = 0; a < 17; a++) {
+            assertEquals(data.countThresholdQuery(1, a), matrix.visitors(a));
+            for (int b = 0; b < 17; b++) {
+                assertEquals(matrix.jointVisitors(a, b), data.coOccurrenceQuery(b, a));
+                assertTrue(matrix.jointVisitors(a, b) <= matrix.visitors(a));
+            }
+        }
+        assertEquals(1.0, matrix.jaccard(3, 3), 0.0);
+
+        // appending the same users again doubles the counts but keeps the lift
+        int joint = matrix.jointVisitors(0, 1);
+        double lift = matrix.lift(0, 1);
+        data.appendData(new File("testdatafile.txt"));
+        assertEquals(2 * joint, data.coOccurrenceQuery(0, 1));
+        assertEquals(lift, data.coOccurrence().lift(0, 1), 0.0001);
+    }
+
+    @org.junit.Test
+    public void testWideCoOccurrence() throws Exception {
+        // more categories than the bits of a mask
+        File file = File.createTempFile("wide", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "1 65 70\n65 65\n70 1 2\n".getBytes());
+        Data wide = new Data(3, 70);
+        wide.loadData(file);
+        CoOccurrence matrix = wide.coOccurrence();
+        assertEquals(2, matrix.jointVisitors(0, 69));
+        assertEquals(1, matrix.jointVisitors(64, 69));
+        assertEquals(2, matrix.jointVisitors(64, 64));
+        assertEquals(0, matrix.jointVisitors(1, 64));
+    }
+
+    @org.junit.Test
+    public void testColumnFiles() throws Exception {
+        File dir = Files.createTempDirectory("columns").toFile();
+        dir.deleteOnExit();
+        data.saveColumns(dir);
+        for (File column : dir.listFiles()) {
+            column.deleteOnExit();
+        }
+
+        // asking for the layout fetches no column
+        ColumnFileArray files = new ColumnFileArray(dir, 2 * 62 * 4);
+        assertTrue(files.isColumnar());
+        assertEquals(0, files.getResidentColumns());
+        assertFalse(new DataArray(62, 17).isColumnar());
+
+        // a pass over one category loads one column, and measuring the dataset loads none
+        Data fresh = Data.openColumns(dir, 17 * 62 * 4);
+        assertArrayEquals(data.visitDistribution(5), fresh.visitDistribution(5));
+        MemoryFootprint resident = fresh.footprint();
+        assertFalse(resident.isCellsRead());
+        assertNull(resident.getBestLayout());
+        assertEquals(MemoryFootprint.array(62, 4), resident.getStorageBytes());
+        assertTrue(resident.getDiskBytes() >= 17 * 62 * 4);
+        assertEquals(MemoryFootprint.array(62, 4), fresh.footprint().getStorageBytes());
+        assertTrue(resident.summary().endsWith("cells not read"));
+        MemoryFootprint measured = fresh.footprint(true); // loads every column on request
+        assertEquals(MemoryFootprint.Layout.BYTE_CELLS, measured.getBestLayout());
+        assertEquals(12.0 / 62, measured.getDensity(0), 1e-9);
+
+        // room for two columns of 62 users
+        Data columns = Data.openColumns(dir, 2 * 62 * 4);
+        assertEquals(62, columns.getTotalUsers());
+        assertEquals(data.countThresholdQuery(5, 0), columns.countThresholdQuery(5, 0));
+        for (int category = 0; category < 17; category++) {
+            assertEquals(data.comparePercentageQuery(category, 8), columns.comparePercentageQuery(category, 8), 0.0f);
+            assertEquals(data.percentageCountQuery(category), columns.percentageCountQuery(category), 0.0f);
+        }
+
+        // passes that read every category of every user, with fewer columns in memory than categories
+        assertArrayEquals(data.totalViewsDistribution(), columns.totalViewsDistribution());
+        assertArrayEquals(data.distinctCategoriesDistribution(), columns.distinctCategoriesDistribution());
+        assertArrayEquals(data.distinctCategoriesByTopCategory(), columns.distinctCategoriesByTopCategory());
+        assertEquals(data.totalViewsQuantile(0.9), columns.totalViewsQuantile(0.9));
+        for (int a = 0; a < 17; a++) {
+            assertArrayEquals(data.visitDistribution(a), columns.visitDistribution(a));
+            for (int b = 0; b < 17; b++) {
+                assertEquals(data.coOccurrenceQuery(a, b), columns.coOccurrenceQuery(a, b));
+            }
+        }
+        assertTrue(columns.footprint().getStorageBytes() <= 2 * MemoryFootprint.array(62, 4));
+    }
+
+    @org.junit.Test
+    public void testFailingTasks() throws Exception {
+        File dir = Files.createTempDirectory("columns").toFile();
+        dir.deleteOnExit();
+        data.saveColumns(dir);
+        for (File column : dir.listFiles()) {
+            column.deleteOnExit();
+        }
+        Data columns = Data.openColumns(dir, 2 * 62 * 4);
+        assertTrue(new File(dir, "column-5.bin").delete()); // every task that reads it throws
+
+        // more failures than there are pooled scan jobs, each must give its job back and leave the workers running
+        for (int i = 0; i < 20; i++) {
+            try {
+                columns.compareCountQuery(5, 1);
+                fail("the column can't be read");
+            } catch (UncheckedIOException e) {
+                // expected
+            }
+        }
+        try {
+            columns.totalViewsDistribution();
+            fail("the column can't be read");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+        assertEquals(data.compareCountQuery(0, 1), columns.compareCountQuery(0, 1));
+        assertArrayEquals(data.visitDistribution(2), columns.visitDistribution(2));
+    }
+
+    @org.junit.Test
+    public void testConcurrentScans() throws Exception {
+        // more concurrent scans than there are pooled scan jobs
+        Data scanned = new Data(62, 17, false);
+        scanned.loadData(new File("testdatafile.txt"));
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 200; i++) {
+            results.add(CompletableFuture.supplyAsync(() -> scanned.countThresholdQuery(5, 0)));
+            results.add(scanned.countThresholdQueryAsync(5, 0));
+        }
+        for (CompletableFuture<Integer> result : results) {
+            assertEquals(2, (int) result.get());
+        }
+    }
+
+}
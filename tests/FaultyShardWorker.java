@@ -0,0 +1,53 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A ShardWorker that fails in the middle of a query when the test asks it to. Before a query the test writes "die" or
+ * "stall" to the shard file's name plus ".fault"; the worker that reads the next request deletes the file, so the
+ * worker started in its place answers normally, and then exits or stops answering without sending its reply.
+ *
+ * @author Robert Bofinger
+ * @author Preston Mackert
+ *
+ */
+
+public class FaultyShardWorker extends ShardWorker {
+
+    private final File fault;
+
+    public FaultyShardWorker(Data data, File shardFile) {
+        super(data);
+        fault = new File(shardFile.getPath() + ".fault");
+    }
+
+    @Override
+    public int[] partialCounts(QueryType type, int arg1, int arg2) {
+        if (fault.exists()) {
+            String mode;
+            try {
+                mode = new String(Files.readAllBytes(fault.toPath())).trim();
+            } catch (IOException e) {
+                mode = "die";
+            }
+            fault.delete();
+            if (mode.equals("stall")) {
+                while (true) {
+                    try {
+                        Thread.sleep(Long.MAX_VALUE); // the request was read but is never answered
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+            Runtime.getRuntime().halt(1); // dies with the request in flight
+        }
+        return super.partialCounts(type, arg1, arg2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        File file = new File(args[0]);
+        Data data = new Data(0, CATEGORIES);
+        data.loadData(file);
+        run(new FaultyShardWorker(data, file), 0);
+    }
+}
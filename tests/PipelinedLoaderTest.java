@@ -0,0 +1,109 @@
+import org.junit.Before;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for the pipelined loader, it uses buffers much smaller than the file so that lines are split across
+ * buffers and the decoder has to wait for buffers to be returned.
+ *
+ * @author Robert Bofinger
+ * @author Preston Mackert
+ *
+ */
+
+public class PipelinedLoaderTest {
+
+    LinkedBlockingQueue<Runnable> workers;
+
+    @Before
+    public void setUp() throws Exception {
+        workers = new LinkedBlockingQueue<Runnable>();
+        for (int i = 0; i < 3; i++) {
+            Thread worker = new Thread(() -> {
+                while (true) {
+                    try {
+                        workers.take().run();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private List<String> load(String text, int bufferSize) throws IOException {
+        List<String> users = new ArrayList<String>();
+        new PipelinedLoader(workers, 3, bufferSize, 2).load(new ByteArrayInputStream(text.getBytes()),
+                (rows, count) -> {
+                    for (int i = 0; i < count; i++) {
+                        users.add(rows[i * 3] + "," + rows[i * 3 + 1] + "," + rows[i * 3 + 2]);
+                    }
+                });
+        return users;
+    }
+
+    @org.junit.Test
+    public void testSmallBuffers() throws Exception {
+        String text = "1 1 2\n3\n2 2 2 2 3 1\n1\n3 3\n";
+        for (int bufferSize = 1; bufferSize < 12; bufferSize++) {
+            List<String> users = load(text, bufferSize);
+            assertEquals(5, users.size());
+            assertEquals("2,1,0", users.get(0));
+            assertEquals("1,4,1", users.get(2));
+            assertEquals("0,0,2", users.get(4));
+        }
+    }
+
+    @org.junit.Test
+    public void testLastLineWithoutNewline() throws Exception {
+        assertEquals(2, load("1 2\r\n3", 4).size());
+    }
+
+    @org.junit.Test(expected = IOException.class)
+    public void testCategoryOutOfRange() throws Exception {
+        load("1 2\n4\n", 64);
+    }
+
+    @org.junit.Test
+    public void testSkipBadLines() throws Exception {
+        String text = "1 2\n\n3 x 1\n2 2\n9\n3\n1 3 7";
+        for (int bufferSize = 1; bufferSize < 16; bufferSize++) {
+            PipelinedLoader loader = new PipelinedLoader(workers, 3, bufferSize, 2);
+            loader.setErrorBudget(4);
+            ByteArrayOutputStream quarantine = new ByteArrayOutputStream();
+            loader.setQuarantine(quarantine);
+            List<String> users = new ArrayList<String>();
+            LoadReport report = loader.load(new ByteArrayInputStream(text.getBytes()), (rows, count) -> {
+                for (int i = 0; i < count; i++) {
+                    users.add(rows[i * 3] + "," + rows[i * 3 + 1] + "," + rows[i * 3 + 2]);
+                }
+            });
+            assertEquals(3, users.size());
+            assertEquals("0,2,0", users.get(1));
+            assertEquals(7, report.getLines());
+            assertEquals(3, report.getUsers());
+            assertEquals(4, report.getSkipped());
+            assertEquals("line 2: empty line", report.getErrors().get(0));
+            assertEquals("line 3: unexpected character 'x'", report.getErrors().get(1));
+            assertEquals("line 5: category 9 is out of range", report.getErrors().get(2));
+            assertEquals("line 7: category 7 is out of range", report.getErrors().get(3));
+            assertEquals("\n3 x 1\n9\n1 3 7\n", quarantine.toString());
+        }
+    }
+
+    @org.junit.Test
+    public void testErrorBudget() throws Exception {
+        PipelinedLoader loader = new PipelinedLoader(workers, 3, 4, 2);
+        loader.setErrorBudget(1);
+        try {
+            loader.load(new ByteArrayInputStream("1\n4\n2\n99999999999\n3\n".getBytes()), (rows, count) -> {});
+            fail("the second bad line is over the budget");
+        } catch (IOException e) {
+            assertEquals("more than 1 bad lines, line 4: category 99999999999 is out of range", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for capturing a workload with QueryLog and replaying it with WorkloadReplay.
+ *
+ * @author Robert Bofinger
+ * @author Preston Mackert
+ *
+ */
+
+public class QueryLogTest {
+
+    @org.junit.Test
+    public void testCaptureAndReplay() throws Exception {
+        Data data = new Data(62, 17);
+        data.loadData(new File("testdatafile.txt"));
+        File file = File.createTempFile("queries", ".log");
+        file.deleteOnExit();
+
+        QueryLog log = new QueryLog(file);
+        data.setQueryLog(log);
+        boolean count = data.countQuery(5, 0);
+        float percentage = data.percentageCountQuery(3);
+        boolean comparison = data.comparisonQuery(0, 1);
+        int threshold = data.countThresholdQuery(2, 1);
+        data.setQueryLog(null);
+        data.countQuery(1, 1); // not recorded
+        log.close();
+
+        List<QueryLog.Entry> entries = QueryLog.read(file);
+        assertEquals(4, entries.size());
+        assertEquals(QueryType.COUNT, entries.get(0).getType());
+        assertEquals(5, entries.get(0).getArg1());
+        assertEquals(count ? 1 : 0, entries.get(0).getResult(), 0);
+        assertEquals(percentage, entries.get(1).getResult(), 0.0001);
+        assertEquals(comparison ? 1 : 0, entries.get(2).getResult(), 0);
+        assertEquals(QueryType.THRESHOLD, entries.get(3).getType());
+        assertEquals(threshold, entries.get(3).getResult(), 0);
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i).getStartNanos() >= entries.get(i - 1).getStartNanos());
+        }
+
+        WorkloadReplay.Report report = WorkloadReplay.replay(data, entries, 0, 2);
+        assertTrue(report.getDifferences().isEmpty());
+        assertTrue(report.latencyPercentile(100) > 0);
+    }
+
+    @org.junit.Test
+    public void testReplayFailure() throws Exception {
+        Data data = new Data(62, 17);
+        data.loadData(new File("testdatafile.txt"));
+        List<QueryLog.Entry> entries = Arrays.asList(
+                new QueryLog.Entry(0, QueryType.THRESHOLD, 2, 1, 0, data.countThresholdQuery(2, 1)),
+                new QueryLog.Entry(0, QueryType.THRESHOLD, 2, 99, 0, 0), // no category 99, the query throws
+                new QueryLog.Entry(0, QueryType.COMPARE_COUNT, 0, 1, 0, data.compareCountQuery(0, 1)));
+
+        // with one thread a failure used to end the replay and skip the entries after it
+        WorkloadReplay.Report report = WorkloadReplay.replay(data, entries, 0, 1);
+        assertEquals(1, report.getDifferences().size());
+        assertTrue(report.getDifferences().get(0).startsWith("query 1 countThresholdQuery(2, 99): recorded 0.0, "
+                + "failed with"));
+        assertTrue(report.serviceTimePercentile(0) > 0);
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.After;
+import org.junit.Before;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for the sharded mode, it starts three worker JVMs on the testing data file and checks that the merged
+ * answers are the same as those of a single Data, also after a worker is killed.
+ *
+ * @author Robert Bofinger
+ * @author Preston Mackert
+ *
+ */
+
+public class ShardCoordinatorTest {
+
+    Data data;
+    ShardCoordinator coordinator;
+    File shardDir;
+
+    @Before
+    public void setUp() throws Exception {
+        File file = new File("testdatafile.txt");
+        data = new Data(62, 17);
+        data.loadData(file);
+        shardDir = Files.createTempDirectory("shards").toFile();
+        shardDir.deleteOnExit();
+        coordinator = new ShardCoordinator(file, 3, shardDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        coordinator.close();
+    }
+
+    private void assertSameAnswers() {
+        for (int category = 0; category < 17; category++) {
+            assertEquals(data.countQuery(3, category), coordinator.countQuery(3, category));
+            assertEquals(data.percentageCountQuery(category), coordinator.percentageCountQuery(category), 0.0f);
+            assertEquals(data.comparisonQuery(category, 3), coordinator.comparisonQuery(category, 3));
+            assertEquals(data.countThresholdQuery(2, category), coordinator.countThresholdQuery(2, category));
+            assertEquals(data.comparePercentageQuery(category, 8), coordinator.comparePercentageQuery(category, 8),
+                    0.0f);
+        }
+    }
+
+    @org.junit.Test
+    public void testMergedAnswers() throws Exception {
+        assertSameAnswers();
+    }
+
+    @org.junit.Test
+    public void testWorkerDies() throws Exception {
+        coordinator.getProcess(1).destroyForcibly().waitFor();
+        assertSameAnswers();
+    }
+
+    /**
+     * Makes worker 1 of a coordinator of FaultyShardWorkers fail with the next query in flight, then checks that the
+     * query is still answered by a restarted worker
+     */
+    private void checkFaultInFlight(String mode) throws Exception {
+        List<File> files = ShardCoordinator.split(new File("testdatafile.txt"), 3, shardDir);
+        ShardCoordinator faulty = new ShardCoordinator(files, "FaultyShardWorker", 2000);
+        try {
+            assertEquals(data.countThresholdQuery(2, 0), faulty.countThresholdQuery(2, 0));
+            Process before = faulty.getProcess(1);
+            Files.write(new File(files.get(1).getPath() + ".fault").toPath(), mode.getBytes());
+            assertEquals(data.compareCountQuery(0, 1), ((Integer) faulty.query(QueryType.COMPARE_COUNT, 0, 1))
+                    .intValue());
+            assertFalse(new File(files.get(1).getPath() + ".fault").exists());
+            assertNotSame(before, faulty.getProcess(1));
+            before.waitFor(5, TimeUnit.SECONDS);
+            assertFalse(before.isAlive());
+            assertEquals(data.percentageCountQuery(4), faulty.percentageCountQuery(4), 0.0f);
+        } finally {
+            faulty.close();
+        }
+    }
+
+    @org.junit.Test
+    public void testWorkerDiesMidQuery() throws Exception {
+        checkFaultInFlight("die");
+    }
+
+    @org.junit.Test
+    public void testWorkerStallsMidQuery() throws Exception {
+        checkFaultInFlight("stall");
+    }
+
+    @org.junit.Test
+    public void testBadRequest() throws Exception {
+        // the first categories out of range, the worker replies with an error
+        assertEquals(-1, coordinator.countThresholdQuery(1, 17));
+        assertEquals(-1, coordinator.countThresholdQuery(1, -1));
+        assertEquals(QueryType.COMPARE_PERCENTAGE.errorResult(),
+                coordinator.query(QueryType.COMPARE_PERCENTAGE, 0, 17));
+
+        // without aggregates the visitor counts come from the ingest counters, which don't check the category
+        Data counted = new Data(62, 17, false);
+        counted.loadData(new File("testdatafile.txt"));
+        ShardWorker worker = new ShardWorker(counted);
+        QueryType[] types = {QueryType.THRESHOLD, QueryType.PERCENTAGE, QueryType.COMPARISON};
+        int[][] arguments = {{1, 17}, {17, 0}, {-1, 0}};
+        for (int i = 0; i < types.length; i++) {
+            try {
+                worker.partialCounts(types[i], arguments[i][0], arguments[i][1]);
+                fail(types[i] + " of " + arguments[i][0] + ", " + arguments[i][1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertSameAnswers();
+    }
+}